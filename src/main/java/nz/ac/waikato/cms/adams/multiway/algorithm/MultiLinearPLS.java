@@ -14,9 +14,12 @@ import nz.ac.waikato.cms.adams.multiway.exceptions.ModelBuildException;
 import nz.ac.waikato.cms.adams.multiway.exceptions.ModelNotBuiltException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.BooleanIndexing;
 import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.conditions.Conditions;
 import org.nd4j.linalg.ops.transforms.Transforms;
 
 import java.util.HashMap;
@@ -26,12 +29,12 @@ import java.util.Set;
 import static nz.ac.waikato.cms.adams.multiway.algorithm.stopping.CriterionType.IMPROVEMENT;
 import static nz.ac.waikato.cms.adams.multiway.algorithm.stopping.CriterionType.ITERATION;
 import static nz.ac.waikato.cms.adams.multiway.data.MathUtils.center;
-import static nz.ac.waikato.cms.adams.multiway.data.MathUtils.concat;
 import static nz.ac.waikato.cms.adams.multiway.data.MathUtils.invertVectorize;
 import static nz.ac.waikato.cms.adams.multiway.data.MathUtils.matricize;
 import static nz.ac.waikato.cms.adams.multiway.data.MathUtils.outer;
 import static nz.ac.waikato.cms.adams.multiway.data.MathUtils.pseudoInvert;
 import static nz.ac.waikato.cms.adams.multiway.data.MathUtils.t;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
 import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
 import static org.nd4j.linalg.indexing.NDArrayIndex.point;
 
@@ -42,6 +45,18 @@ import static org.nd4j.linalg.indexing.NDArrayIndex.point;
  * Bro Multiway Calibration, Multilinear PLS</a> Reference R implementation: <a
  * href='http://models.life.ku.dk/sites/default/files/NPLS_Rver.zip>Download</a>
  * <p>
+ * For a single target, the inner NIPALS loop converges in one step. It is
+ * then solved in closed form without the PCA initialization and the stopping
+ * criteria of the inner loop.
+ * <p>
+ * Besides the batch build, the model can be fitted recursively on a stream
+ * of mini-batches with {@link MultiLinearPLS#update(Tensor, Tensor)}. Each
+ * update adds the batch to the cross-products X^T*X and X^T*Y in the unfolded
+ * space, discounted by a forgetting factor, and refreshes the model from these
+ * statistics only. Note that X^T*X is of size (J*K x J*K). The batch build
+ * only keeps it if requested, see {@link
+ * MultiLinearPLS#setKeepStatistics(boolean)}.
+ * <p>
  *
  * @author Steven Lang
  */
@@ -54,6 +69,9 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
   /** Serial version UID */
   private static final long serialVersionUID = 6121171390172636096L;
 
+  /** Maximum number of power iterations to compute w^J and w^K */
+  protected static final int MAX_POWER_ITERATIONS = 1000;
+
   /** Number of components / PLS iterations */
   protected int numComponents;
 
@@ -96,11 +114,46 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
   /** Whether to standardize Y or not */
   protected boolean standardizeY;
 
+  /** Weight of the previous statistics in recursive updates */
+  protected double forgettingFactor;
+
+  /** Whether the batch build keeps the statistics for recursive updates */
+  protected boolean keepStatistics;
+
+  /** (Effective) number of samples of the recursive statistics */
+  protected double numSamples;
+
+  /** (1 x J*K) Reference point of the input the statistics are taken at */
+  protected INDArray referenceX;
+
+  /** (1 x Jy) Reference point of the targets the statistics are taken at */
+  protected INDArray referenceY;
+
+  /** (1 x J*K) Sum of the input deviations from the reference point */
+  protected INDArray sumX;
+
+  /** (1 x Jy) Sum of the target deviations from the reference point */
+  protected INDArray sumY;
+
+  /** (J*K x J*K) Cross-product X^T*X of the input deviations */
+  protected INDArray crossXX;
+
+  /** (J*K x Jy) Cross-product X^T*Y of the input and target deviations */
+  protected INDArray crossXY;
+
+  /** (1 x Jy) Sum of the squared target deviations */
+  protected INDArray squaredDeviationsY;
+
+  /** Shape J, K, Jy of the data the recursive statistics were collected on */
+  protected long[] statisticsShape;
+
   @Override
   protected void initialize() {
     super.initialize();
     this.numComponents = 10;
     this.standardizeY = true;
+    this.forgettingFactor = 1.0;
+    this.keepStatistics = false;
     addStoppingCriterion(CriterionUtils.iterations(250));
     addStoppingCriterion(CriterionUtils.improvement(10E-8));
   }
@@ -112,11 +165,10 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
     final int xJ = (int) xTensor.size(1);
     final int xK = (int) xTensor.size(2);
     numTargets = (int) yTensor.size(1);
+    resetStatistics();
 
     // Unfold X in first mode IxJxK -> IxJ*K
     INDArray Xa = matricize(xTensor.getData(), 0);
-    INDArray Xres = Xa.dup();
-    INDArray Xmodel = Nd4j.zeros(xI, xJ * xK);
     INDArray Y = yTensor.getData();
     INDArray Yres = Y.dup();
 
@@ -129,11 +181,31 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
     // Center X,Y across the first mode
     Xa = center(Xa, 0);
     Y = center(Y, 0);
+
+    // Keep the statistics at the means for recursive updates
+    if (keepStatistics) {
+      numSamples = xI;
+      referenceX = xMean.reshape(1, -1).dup();
+      referenceY = yMean.reshape(1, -1).dup();
+      sumX = Nd4j.zeros(Xa.dataType(), 1, Xa.size(1));
+      sumY = Nd4j.zeros(Y.dataType(), 1, numTargets);
+      crossXX = t(Xa).mmul(Xa);
+      crossXY = t(Xa).mmul(Y);
+      squaredDeviationsY = Y.mul(Y).sum(0).reshape(1, -1);
+      statisticsShape = new long[]{xJ, xK, numTargets};
+    }
+
     if (standardizeY) {
       Y = Y.divRowVector(yStd);
     }
 
-    T = null;
+    // Preallocate the component matrices at their final sizes
+    T = Nd4j.zeros(Xa.dataType(), xI, numComponents);
+    U = Nd4j.zeros(Xa.dataType(), xI, numComponents);
+    W = Nd4j.zeros(Xa.dataType(), xJ * xK, numComponents);
+    Wj = Nd4j.zeros(Xa.dataType(), xJ, numComponents);
+    Wk = Nd4j.zeros(Xa.dataType(), xK, numComponents);
+    Q = Nd4j.zeros(Xa.dataType(), numTargets, numComponents);
     B = Nd4j.zeros(numComponents, numComponents);
     INDArray ba;
 
@@ -142,35 +214,53 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
     INDArray ta = null;
     INDArray wa = null;
     INDArray q = null;
+    INDArray[] wjWk = null;
     final ImprovementCriterion imprCrit = (ImprovementCriterion) stoppingCriteria.get(IMPROVEMENT);
     final IterationCriterion iterCrit = (IterationCriterion) stoppingCriteria.get(ITERATION);
 
+    // The PCA initialization of u is only required for multiple targets
     TwoWayPCA pca = new TwoWayPCA();
     pca.setNumComponents(1);
 
     // Generate N components
     for (int a = 0; a < numComponents && !isForceStop(); a++) {
-      pca.build(Tensor.create(Yres));
-      u = pca.getLoadingMatrices().get("T").getData();
-
-      // Inner NIPALS loop
-      while (!(iterCrit.matches() || imprCrit.matches()) && !isForceStop()) {
-	wa = getW(Xa, u, xJ, xK);
-	ta = Xres.mmul(wa);
-        q = t(Yres).mmul(ta);
-        q = q.div(q.norm2());
+      if (numTargets == 1) {
+	// A single target is its own score vector, so the NIPALS loop
+	// converges in one step: solve it in closed form with a single
+	// rank-1 decomposition
+	wjWk = getWjWk(Xa, Yres, xJ);
+	wa = getW(wjWk, xJ, xK);
+	ta = getResidualScores(Xa, wa, a);
+	q = t(Yres).mmul(ta);
+	q = q.div(q.norm2());
 	u = Yres.mmul(q);
-
-	// Update iteration criterion
-	iterCrit.update();
       }
-      pca.resetState();
-
-      // Reset iterations for next NIPALS loop
-      iterCrit.reset();
-
-      // Update improvement criterion
-      imprCrit.update(u.norm2().getDouble(0));
+      else {
+	pca.build(Tensor.create(Yres));
+	u = pca.getLoadingMatrices().get("T").getData();
+	wjWk = null;
+
+	// Inner NIPALS loop
+	while (!(iterCrit.matches() || imprCrit.matches()) && !isForceStop()) {
+	  wjWk = getWjWk(Xa, u, xJ, wjWk);
+	  wa = getW(wjWk, xJ, xK);
+	  ta = getResidualScores(Xa, wa, a);
+	  q = t(Yres).mmul(ta);
+	  q = q.div(q.norm2());
+	  u = Yres.mmul(q);
+
+	  // Update iteration criterion
+	  iterCrit.update();
+	}
+	pca.resetState();
+	wjWk = getWjWk(Xa, u, xJ, wjWk);
+
+	// Reset iterations for next NIPALS loop
+	iterCrit.reset();
+
+	// Update improvement criterion
+	imprCrit.update(u.norm2().getDouble(0));
+      }
 
       // Check if improvement criterion stopped the NIPALS loop before creating
       // first components
@@ -182,31 +272,342 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
       }
 
       // Collect loading/score components
-      final INDArray[] wjWk = getWjWk(Xa, u, xJ);
-      Wj = concat(Wj, wjWk[0], 1);
-      Wk = concat(Wk, wjWk[1], 1);
-      W = concat(W, wa, 1);
-      Q = concat(Q, q, 1);
-      U = concat(U, u, 1);
-      T = concat(T, ta, 1);
-
-      // Deflate X
-      Xmodel = Xmodel.add(ta.mmul(t(wa)));
-      Xres = Xa.sub(Xmodel);
+      Wj.putColumn(a, wjWk[0]);
+      Wk.putColumn(a, wjWk[1]);
+      W.putColumn(a, wa);
+      Q.putColumn(a, q);
+      U.putColumn(a, u);
+      T.putColumn(a, ta);
 
+      // Views on the components collected so far
+      final INDArray Ta = T.get(all(), interval(0, a + 1));
+      final INDArray Qa = Q.get(all(), interval(0, a + 1));
 
       // Estimate ba
-      ba = pseudoInvert(t(T).mmul(T), false).mmul(t(T)).mmul(u);
+      ba = pseudoInvert(t(Ta).mmul(Ta), false).mmul(t(Ta)).mmul(u);
       B.put(new INDArrayIndex[]{interval(0, a + 1), point(a)}, ba);
 
       // Deflate Y
-      INDArray ypred = T.mmul(B.get(interval(0, a + 1), interval(0, a + 1)).dup()).mmul(t(Q));
+      INDArray ypred = Ta.mmul(B.get(interval(0, a + 1), interval(0, a + 1)).dup()).mmul(t(Qa));
       Yres = Y.sub(ypred);
     }
     return null;
   }
 
 
+  /**
+   * Update the model recursively with a new mini-batch of samples. The batch
+   * is added to the statistics of all previous updates, which are weighted
+   * with the forgetting factor, and the model is refreshed from the
+   * statistics. A model built with {@link MultiLinearPLS#build(Tensor,
+   * Tensor)} only keeps the statistics of its training data if {@link
+   * MultiLinearPLS#isKeepStatistics()} is set, such that updates continue from
+   * it. Otherwise the first update starts new statistics.
+   * <p>
+   * Each update costs O(n*(J*K)^2) to add the n samples of the batch to X^T*X
+   * and O((J*K)^2*F) to refresh the F components, independent of the number
+   * of previous samples. The statistics take O((J*K)^2) memory.
+   * <p>
+   * The refreshed model equals the batch model for centered inputs and
+   * standardized targets. Otherwise they deliberately differ in the first
+   * component: the batch build scores it on the uncentered input and targets,
+   * while the recursive model is centered throughout.
+   *
+   * @param x Data tensor of the batch
+   * @param y Learning target of the batch
+   * @return Error message if error, else null
+   */
+  public String update(Tensor x, Tensor y) {
+    String result = check(x, y);
+    if (result == null) {
+      // If input is two-way, transform to pseudo threeway ([10,5] -> [10,5,1])
+      if (x.getData().rank() == 2) {
+	x = Tensor.twoWayToThreeWay(x);
+      }
+      result = checkUpdate(x, y);
+    }
+    if (isDebug && result != null) {
+      log.warn("Check(input) result was: {}", result);
+    }
+
+    if (result == null) {
+      result = doUpdate(x, y);
+    }
+    return result;
+  }
+
+  /**
+   * Check whether a batch matches the data of the previous updates and return
+   * an error message if not, else null.
+   *
+   * @param x Data tensor of the batch
+   * @param y Learning target of the batch
+   * @return Error message if error, else null
+   */
+  protected String checkUpdate(Tensor x, Tensor y) {
+    if (x.order() != 3) {
+      return "Input tensor must be of order three but was of order "
+	+ x.order() + ".";
+    }
+
+    if (statisticsShape != null
+      && (x.size(1) != statisticsShape[0]
+      || x.size(2) != statisticsShape[1]
+      || y.size(1) != statisticsShape[2])) {
+      return "Batch dimensions do not match the dimensions of the " +
+	"previous updates.";
+    }
+
+    return null;
+  }
+
+  /**
+   * Run the actual recursive update.
+   *
+   * @param xTensor Data tensor of the batch
+   * @param yTensor Learning target of the batch
+   * @return Error message if error, else null
+   */
+  protected String doUpdate(Tensor xTensor, Tensor yTensor) {
+    final int xJ = (int) xTensor.size(1);
+    final int xK = (int) xTensor.size(2);
+    numTargets = (int) yTensor.size(1);
+
+    final INDArray X = matricize(xTensor.getData(), 0);
+    final INDArray Y = yTensor.getData();
+    updateStatistics(X, Y);
+    statisticsShape = new long[]{xJ, xK, numTargets};
+    refreshModel(xJ, xK);
+    isFinished = true;
+
+    // Scores of the latest batch
+    T = filter(xTensor).getData();
+    INDArray Yc = Y.subRowVector(yMean);
+    if (standardizeY) {
+      Yc = Yc.divRowVector(yStd);
+    }
+    U = Nd4j.zeros(Yc.dataType(), Yc.size(0), numComponents);
+    for (int a = 0; a < numComponents; a++) {
+      INDArray Yres = Yc;
+      if (a > 0) {
+	Yres = Yc.sub(T.get(all(), interval(0, a))
+	  .mmul(B.get(interval(0, a), interval(0, a)).dup())
+	  .mmul(t(Q.get(all(), interval(0, a)))));
+      }
+      U.putColumn(a, Yres.mmul(Q.getColumn(a, true)));
+    }
+    return null;
+  }
+
+  /**
+   * Add a batch to the recursive statistics after discounting the previous
+   * statistics with the forgetting factor, and update the means and standard
+   * deviations. The cross-products are accumulated around a fixed reference
+   * point, the means of the first batch (or the training data), which avoids
+   * the cancellation of raw sums for data with large offsets. Moving them to
+   * the current means is a rank-1 correction, which is applied within the
+   * products that use them (see {@link
+   * MultiLinearPLS#multiplyCrossXX(INDArray)}).
+   *
+   * @param X Matricized input of the batch
+   * @param Y Targets of the batch
+   */
+  protected void updateStatistics(INDArray X, INDArray Y) {
+    if (crossXX == null) {
+      numSamples = 0;
+      referenceX = X.mean(0).reshape(1, -1);
+      referenceY = Y.mean(0).reshape(1, -1);
+      sumX = Nd4j.zeros(X.dataType(), 1, X.size(1));
+      sumY = Nd4j.zeros(Y.dataType(), 1, Y.size(1));
+      crossXX = Nd4j.zeros(X.dataType(), X.size(1), X.size(1));
+      crossXY = Nd4j.zeros(X.dataType(), X.size(1), Y.size(1));
+      squaredDeviationsY = Nd4j.zeros(Y.dataType(), 1, Y.size(1));
+    }
+
+    final INDArray Xd = X.subRowVector(referenceX);
+    final INDArray Yd = Y.subRowVector(referenceY);
+    numSamples = numSamples * forgettingFactor + X.size(0);
+    sumX.muli(forgettingFactor).addi(Xd.sum(0).reshape(1, -1));
+    sumY.muli(forgettingFactor).addi(Yd.sum(0).reshape(1, -1));
+    crossXX.muli(forgettingFactor).addi(t(Xd).mmul(Xd));
+    crossXY.muli(forgettingFactor).addi(t(Xd).mmul(Yd));
+    squaredDeviationsY.muli(forgettingFactor).addi(Yd.mul(Yd).sum(0).reshape(1, -1));
+
+    // Means and sample standard deviations
+    final INDArray shiftX = sumX.div(numSamples);
+    final INDArray shiftY = sumY.div(numSamples);
+    xMean = referenceX.add(shiftX).reshape(shiftX.length());
+    yMean = referenceY.add(shiftY).reshape(shiftY.length());
+    final INDArray ssX = Nd4j.diag(crossXX).reshape(1, -1)
+      .subi(shiftX.mul(shiftX).muli(numSamples));
+    final INDArray ssY = squaredDeviationsY.sub(shiftY.mul(shiftY).muli(numSamples));
+    xStd = getStd(ssX).reshape(xMean.length());
+    yStd = getStd(ssY).reshape(yMean.length());
+  }
+
+  /**
+   * Multiply the centered cross-product of the input with the given matrix,
+   * i.e. (X - 1*mean)^T*(X - 1*mean)*r. The centering is the rank-1
+   * correction crossXX*r - n*s^T*(s*r) with the mean deviation s from the
+   * reference point, the centered cross-product is never materialized.
+   *
+   * @param r Matrix of shape (J*K x m)
+   * @return Product of shape (J*K x m)
+   */
+  protected INDArray multiplyCrossXX(INDArray r) {
+    final INDArray shiftX = sumX.div(numSamples);
+    return crossXX.mmul(r).subi(t(shiftX).mmul(shiftX.mmul(r)).muli(numSamples));
+  }
+
+  /**
+   * Get the sample standard deviations from the sums of squared deviations.
+   * Standard deviations which are zero or undefined, e.g. for a single sample,
+   * are set to one.
+   *
+   * @param squaredDeviations Sums of the squared deviations from the mean
+   * @return Standard deviations
+   */
+  protected INDArray getStd(INDArray squaredDeviations) {
+    final INDArray std;
+    if (numSamples > 1) {
+      std = Transforms.sqrt(squaredDeviations.div(numSamples - 1), false);
+    }
+    else {
+      std = Nd4j.ones(squaredDeviations.dataType(), squaredDeviations.shape());
+    }
+    BooleanIndexing.replaceWhere(std, 1.0, Conditions.isNan());
+    BooleanIndexing.replaceWhere(std, 1.0, Conditions.lessThanOrEqual(0));
+    return std;
+  }
+
+  /**
+   * Refresh the model from the recursive statistics. Follows the NIPALS
+   * iterations of the batch build with all products of X and Y expressed in
+   * the centered cross-products X^T*X and X^T*Y. X^T*X is only multiplied
+   * with the weights of each component, which costs O((J*K)^2*F) in total.
+   * The input is deflated with the weights w, as in {@link
+   * MultiLinearPLS#filter(Tensor)}, so the scores of X are X*r with r = (I -
+   * w_1*w_1^T)...(I - w_{a-1}*w_{a-1}^T)*w_a.
+   *
+   * @param numColumns    Number of columns J
+   * @param numDimensions Number of dimensions K
+   */
+  protected void refreshModel(int numColumns, int numDimensions) {
+    final int numFeatures = numColumns * numDimensions;
+
+    // Centered cross-product X^T*Y, X^T*X is only applied to the weights
+    final INDArray shiftX = sumX.div(numSamples);
+    final INDArray shiftY = sumY.div(numSamples);
+    INDArray Cxy = crossXY.sub(t(shiftX).mmul(shiftY).muli(numSamples));
+    if (standardizeY) {
+      Cxy = Cxy.divRowVector(yStd);
+    }
+    final double cxyNorm = Cxy.norm2Number().doubleValue();
+
+    W = Nd4j.zeros(Cxy.dataType(), numFeatures, numComponents);
+    Wj = Nd4j.zeros(Cxy.dataType(), numColumns, numComponents);
+    Wk = Nd4j.zeros(Cxy.dataType(), numDimensions, numComponents);
+    Q = Nd4j.zeros(Cxy.dataType(), numTargets, numComponents);
+    B = Nd4j.zeros(numComponents, numComponents);
+    final INDArray R = Nd4j.zeros(Cxy.dataType(), numFeatures, numComponents);
+    final INDArray CxxR = Nd4j.zeros(Cxy.dataType(), numFeatures, numComponents);
+    final double tol = Cxy.dataType() == DataType.DOUBLE ? 1e-12 : 1e-6;
+    final IterationCriterion iterCrit = (IterationCriterion) stoppingCriteria.get(ITERATION);
+
+    for (int a = 0; a < numComponents && !isForceStop(); a++) {
+      // Cross-product X^T*Yres of X with the residual targets
+      INDArray Cres = Cxy;
+      if (a > 0) {
+	Cres = Cxy.sub(CxxR.get(all(), interval(0, a))
+	  .mmul(B.get(interval(0, a), interval(0, a)).dup())
+	  .mmul(t(Q.get(all(), interval(0, a)))));
+      }
+
+      // Stop if the remaining targets are not correlated with the input,
+      // e.g. after a single sample
+      final double cresNorm = Cres.norm2Number().doubleValue();
+      if (cxyNorm == 0 || cresNorm <= 1e-12 * cxyNorm) {
+	break;
+      }
+
+      // Start with the target direction of maximum covariance
+      INDArray q = MathUtils.dominantSingularVectors(Cres, null, MAX_POWER_ITERATIONS, tol)[1];
+      INDArray[] wjWk = null;
+      INDArray w;
+      INDArray r;
+      double qNorm;
+      do {
+	wjWk = getWjWkFromZ(Cres.mmul(q), numColumns, wjWk);
+	w = getW(wjWk, numColumns, numDimensions);
+	r = getDeflatedWeights(w, a);
+	q = t(Cres).mmul(r);
+	qNorm = q.norm2Number().doubleValue();
+	q = q.div(qNorm);
+	iterCrit.update();
+      } while (qNorm > 0 && numTargets > 1 && !iterCrit.matches() && !isForceStop());
+      iterCrit.reset();
+
+      // The weights are spanned by the previous components
+      if (!(qNorm > 0)) {
+	break;
+      }
+
+      Wj.putColumn(a, wjWk[0]);
+      Wk.putColumn(a, wjWk[1]);
+      W.putColumn(a, w);
+      Q.putColumn(a, q);
+      R.putColumn(a, r);
+      CxxR.putColumn(a, multiplyCrossXX(r));
+
+      // Estimate ba from T^T*T and T^T*u
+      final INDArray Ra = R.get(all(), interval(0, a + 1));
+      final INDArray TtT = t(Ra).mmul(CxxR.get(all(), interval(0, a + 1)));
+      final INDArray Ttu = t(Ra).mmul(Cres).mmul(q);
+      final INDArray ba = pseudoInvert(TtT, false).mmul(Ttu);
+      B.put(new INDArrayIndex[]{interval(0, a + 1), point(a)}, ba);
+    }
+  }
+
+  /**
+   * Get the weights r that score the undeflated input as X*r = Xres*w, where
+   * Xres is the input deflated with the weights of the previous components.
+   *
+   * @param w         Weights of the current component
+   * @param component Index of the current component
+   * @return Weights of the undeflated input
+   */
+  protected INDArray getDeflatedWeights(INDArray w, int component) {
+    final INDArray r = w.dup();
+    for (int b = component - 1; b >= 0; b--) {
+      final INDArray wb = W.getColumn(b, true);
+      r.subi(wb.mmul(t(wb).mmul(r)));
+    }
+    return r;
+  }
+
+  /**
+   * Compute the scores Xres*w of the residual input after deflating the
+   * previous components, without materializing the residual: Xres*w = X*w -
+   * T*(W^T*w), where T and W hold the scores and weights of the previous
+   * components. The first component is scored on the uncentered input, as
+   * the residual is initialized with it.
+   *
+   * @param X         Centered, matricized input
+   * @param w         Weights of the current component
+   * @param component Index of the current component
+   * @return Scores of the current component
+   */
+  protected INDArray getResidualScores(INDArray X, INDArray w, int component) {
+    final INDArray scores = X.mmul(w);
+    if (component == 0) {
+      return scores.addi(xMean.reshape(1, -1).mmul(w).getDouble(0));
+    }
+
+    final INDArray Tprev = T.get(all(), interval(0, component));
+    final INDArray Wprev = W.get(all(), interval(0, component));
+    return scores.subi(Tprev.mmul(t(Wprev).mmul(w)));
+  }
+
   /**
    * Compute w as w = kronecker(w^J,w^K) from3dDoubleArray(data); with (w^J,w^K)
    * = SVD(Z) and Vec(Z) = X^T*y
@@ -218,7 +619,18 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
    * @return w
    */
   protected INDArray getW(INDArray X, INDArray y, int numColumns, int numDimensions) {
-    final INDArray[] wjwk = getWjWk(X, y, numColumns);
+    return getW(getWjWk(X, y, numColumns), numColumns, numDimensions);
+  }
+
+  /**
+   * Compute w as w = kronecker(w^J,w^K) from given (w^J,w^K).
+   *
+   * @param wjwk          w^J, w^K
+   * @param numColumns    Number of columns
+   * @param numDimensions Number of dimensions
+   * @return w
+   */
+  protected INDArray getW(INDArray[] wjwk, int numColumns, int numDimensions) {
     final INDArray kronecker = outer(wjwk[1], wjwk[0]);
     return kronecker.reshape(numColumns * numDimensions, -1);
   }
@@ -235,23 +647,62 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
    * @return w^J, w^K
    */
   protected INDArray[] getWjWk(INDArray X, INDArray y, int numColumns) {
-    final INDArray vecZ = t(X).mmul(y);
+    return getWjWk(X, y, numColumns, null);
+  }
 
-    INDArray Z = invertVectorize(vecZ, numColumns);
+  /**
+   * Compute (w^J,w^K) as the dominant singular vectors of Z with Vec(Z) =
+   * X^T*y. Only the first singular pair is needed, so it is computed with the
+   * power method directly on Z, warm-started from the result of the
+   * previous NIPALS iteration if available.
+   *
+   * @param X          Matricized input
+   * @param y          Dependent variables
+   * @param numColumns Number of columns
+   * @param previous   w^J, w^K of the previous iteration, or null
+   * @return w^J, w^K
+   */
+  protected INDArray[] getWjWk(INDArray X, INDArray y, int numColumns, INDArray[] previous) {
+    return getWjWkFromZ(t(X).mmul(y), numColumns, previous);
+  }
 
-    // Solve SVD
-    final Map<String, INDArray> svd = MathUtils.svd(Z);
-    final INDArray U = svd.get("U");
-    final INDArray V = svd.get("V");
+  /**
+   * Compute (w^J,w^K) as the dominant singular vectors of Z from a given
+   * Vec(Z). The signs are chosen such that the entry of w^J with the largest
+   * magnitude is positive.
+   *
+   * @param vecZ       Vec(Z)
+   * @param numColumns Number of columns
+   * @param previous   w^J, w^K of the previous iteration, or null
+   * @return w^J, w^K
+   */
+  protected INDArray[] getWjWkFromZ(INDArray vecZ, int numColumns, INDArray[] previous) {
+    INDArray Z = invertVectorize(vecZ, numColumns);
 
     // w^J and w^K are the first left and the first right singular vectors
-    INDArray wJ = U.getColumn(0).dup();
-    INDArray wK = V.getColumn(0).dup();
+    final double tol = Z.dataType() == DataType.DOUBLE ? 1e-12 : 1e-6;
+    final INDArray[] singularVectors = MathUtils.dominantSingularVectors(Z,
+      previous == null ? null : previous[1], MAX_POWER_ITERATIONS, tol);
+    INDArray wJ = singularVectors[0].reshape(singularVectors[0].length());
+    INDArray wK = singularVectors[1].reshape(singularVectors[1].length());
 
     // normalize w^J and w^K
     wJ = normalize(wJ);
     wK = normalize(wK);
 
+    // The pair is only unique up to a common sign: make the largest entry of
+    // w^J positive, w = w^K (x) w^J is not affected
+    int maxIdx = 0;
+    for (int i = 1; i < wJ.length(); i++) {
+      if (Math.abs(wJ.getDouble(i)) > Math.abs(wJ.getDouble(maxIdx))) {
+	maxIdx = i;
+      }
+    }
+    if (wJ.getDouble(maxIdx) < 0) {
+      wJ = wJ.neg();
+      wK = wK.neg();
+    }
+
     return new INDArray[]{wJ, wK};
   }
 
@@ -323,6 +774,55 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
     resetState();
   }
 
+  /**
+   * Get the weight of the previous statistics in recursive updates.
+   *
+   * @return Forgetting factor
+   */
+  public double getForgettingFactor() {
+    return forgettingFactor;
+  }
+
+  /**
+   * Set the weight of the previous statistics in recursive updates. A factor
+   * of one weights all samples equally, smaller factors let the model adapt
+   * to recent batches. Discounting costs O((J*K)^2) per update, as it scales
+   * the statistics.
+   *
+   * @param forgettingFactor Forgetting factor in (0, 1]
+   */
+  public void setForgettingFactor(double forgettingFactor) {
+    if (forgettingFactor <= 0 || forgettingFactor > 1) {
+      log.warn("Forgetting factor must be in (0, 1].");
+    }
+    else {
+      this.forgettingFactor = forgettingFactor;
+      resetState();
+    }
+  }
+
+  /**
+   * Get whether the batch build keeps the statistics for recursive updates.
+   *
+   * @return True if the statistics are kept
+   */
+  public boolean isKeepStatistics() {
+    return keepStatistics;
+  }
+
+  /**
+   * Set whether the batch build keeps the statistics of its training data,
+   * such that {@link MultiLinearPLS#update(Tensor, Tensor)} continues from
+   * them. This keeps the (J*K x J*K) cross-product X^T*X, so it is off by
+   * default.
+   *
+   * @param keepStatistics True to keep the statistics
+   */
+  public void setKeepStatistics(boolean keepStatistics) {
+    this.keepStatistics = keepStatistics;
+    resetState();
+  }
+
   @Override
   protected String check(Tensor x, Tensor y) {
     String superCheck = super.check(x, y);
@@ -384,14 +884,14 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
     INDArray X = matricize(input.getData(), 0);
     X = X.subRowVector(xMean);
     INDArray Xres = X.dup();
-    INDArray T = null;
+    final INDArray T = Nd4j.zeros(X.dataType(), X.size(0), numComponents);
 
     for (int a = 0; a < numComponents; a++) {
       final INDArray wja = this.Wj.getColumn(a).dup();
       final INDArray wka = this.Wk.getColumn(a).dup();
       final INDArray load = outer(wka, wja).reshape(-1, X.size(1));
       final INDArray ta = Xres.mmul(t(load));
-      T = concat(T, ta, 1);
+      T.putColumn(a, ta);
       Xres = Xres.sub(ta.mmul(load));
     }
 
@@ -412,6 +912,22 @@ public class MultiLinearPLS extends SupervisedAlgorithm implements Filter, Loadi
     yStd = null;
     xMean = null;
     xStd = null;
+    resetStatistics();
+  }
+
+  /**
+   * Discard the statistics of the recursive updates.
+   */
+  protected void resetStatistics() {
+    numSamples = 0;
+    referenceX = null;
+    referenceY = null;
+    sumX = null;
+    sumY = null;
+    crossXX = null;
+    crossXY = null;
+    squaredDeviationsY = null;
+    statisticsShape = null;
   }
 
   @Override
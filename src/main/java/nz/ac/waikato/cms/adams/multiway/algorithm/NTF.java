@@ -1,6 +1,7 @@
 package nz.ac.waikato.cms.adams.multiway.algorithm;
 
 import com.google.common.collect.ImmutableSet;
+import nz.ac.waikato.cms.adams.multiway.algorithm.api.Filter;
 import nz.ac.waikato.cms.adams.multiway.algorithm.api.LoadingMatrixAccessor;
 import nz.ac.waikato.cms.adams.multiway.algorithm.api.UnsupervisedAlgorithm;
 import nz.ac.waikato.cms.adams.multiway.algorithm.stopping.Criterion;
@@ -8,12 +9,17 @@ import nz.ac.waikato.cms.adams.multiway.algorithm.stopping.CriterionType;
 import nz.ac.waikato.cms.adams.multiway.algorithm.stopping.CriterionUtils;
 import nz.ac.waikato.cms.adams.multiway.algorithm.stopping.ImprovementCriterion;
 import nz.ac.waikato.cms.adams.multiway.data.MathUtils;
+import nz.ac.waikato.cms.adams.multiway.data.Tuple;
+import nz.ac.waikato.cms.adams.multiway.data.tensor.SlabSource;
+import nz.ac.waikato.cms.adams.multiway.data.tensor.SparseTensor;
 import nz.ac.waikato.cms.adams.multiway.data.tensor.Tensor;
 import nz.ac.waikato.cms.adams.multiway.exceptions.InvalidInputException;
-import org.nd4j.linalg.api.iter.NdIndexIterator;
+import nz.ac.waikato.cms.adams.multiway.exceptions.ModelBuildException;
+import nz.ac.waikato.cms.adams.multiway.exceptions.ModelNotBuiltException;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.indexing.BooleanIndexing;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.nd4j.linalg.indexing.conditions.Conditions;
 import org.nd4j.linalg.indexing.conditions.LessThan;
 import org.nd4j.linalg.learning.GradientUpdater;
@@ -25,19 +31,60 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Non-Negative Tensor Factorization.
  *
  * <p>Implementation according to: <a href="https://dl.acm.org/citation.cfm?id=1102451">Non-negative
  * tensor factorization with applications to statistics and computer vision</a>
+ *
+ * <p>Besides dense tensors, the factorization can be built on a {@link
+ * SparseTensor} via {@link NTF#build(SparseTensor)}. The update rule
+ * nominators and the loss are then computed over the stored entries only, such
+ * that memory and time scale with the number of non-zeros.
+ *
+ * <p>With {@link GRADIENT_UPDATE_TYPE#NORMALIZED_UPDATE}, the rows of a mode
+ * can be updated in parallel, see {@link NTF#setNumThreads(int)}. Each row is
+ * computed in the same way as in a sequential run, hence the results do not
+ * depend on the number of threads.
+ *
+ * <p>Instead of the squared error, the decomposition can minimize a beta
+ * divergence, such as the Kullback-Leibler divergence for count data, see
+ * {@link NTF#setDivergenceType(DIVERGENCE_TYPE)}. These use the multiplicative
+ * updates U_r &lt;- U_r * ((M^(beta-2) * X)_(r) KR) / ((M^(beta-1))_(r) KR),
+ * where M is the model and KR the Khatri-Rao product of the other modes. On
+ * sparse input, only the Kullback-Leibler divergence is supported, as zeros of
+ * the target do not contribute to its nominators.
+ *
+ * <p>New samples can be projected onto the learned decomposition with {@link
+ * NTF#filter(Tensor)}, which keeps all modes but the first (sample) mode fixed.
+ *
+ * <p>Besides random initialization, the decomposition can be initialized with
+ * NNDSVD on the mode unfoldings or from a clipped PARAFAC fit, see {@link
+ * NTF#setInitializationType(INITIALIZATION_TYPE)}. Random initialization
+ * supports multiple starts, of which the one with the lowest loss is kept,
+ * see {@link NTF#setNumStarts(int)}. With more than one thread, the starts
+ * run in parallel instead of the rows of each mode.
+ *
+ * <p>Tensors that do not fit into memory can be factorized stochastically
+ * from a {@link SlabSource} via {@link NTF#build(SlabSource)}, which streams
+ * mini-batches of the first (sample) mode. For each batch, the sample
+ * decomposition of the batch is updated with {@link
+ * NTF#getNumSampleIterations()} multiplicative updates, followed by a step
+ * along the batch-averaged gradient of the shared decompositions of all other
+ * modes, whose step sizes are driven by the updater.
  */
-public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor {
+public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor, Filter {
 
   private static final long serialVersionUID = -3637653705671885273L;
 
@@ -55,6 +102,39 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
   /** Input tensor (variable G in the paper */
   protected INDArray target;
 
+  /** Matricized input tensor for each mode */
+  protected INDArray[] targetMatricized;
+
+  /** Sparse input tensor, set instead of the dense target for sparse builds */
+  protected SparseTensor sparseTarget;
+
+  /** Slab source, set instead of the dense target for stochastic builds */
+  protected transient SlabSource slabSource;
+
+  /** Number of samples per mini-batch in stochastic builds */
+  protected int batchSize;
+
+  /** Number of sample mode updates per mini-batch in stochastic builds */
+  protected int numSampleIterations;
+
+  /** Updaters of the shared modes in stochastic builds */
+  protected GradientWrapper[] sharedGradientWrappers;
+
+  /** Sum of the losses of all batches in the latest epoch of a stochastic build */
+  protected double epochLoss;
+
+  /** Shape of the input tensor */
+  protected long[] targetShape;
+
+  /** Squared Frobenius norm of the input tensor */
+  protected double targetSquaredNorm;
+
+  /** Update rule nominators of the last mode in the latest step, if still valid */
+  protected INDArray lastNominator;
+
+  /** Gram matrix U^T*U of each mode's decomposition */
+  protected INDArray[] gram;
+
   /** Logger */
   protected static final Logger logger = LoggerFactory.getLogger(NTF.class);
 
@@ -62,18 +142,56 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
 
   protected double loss = Double.MAX_VALUE;
 
-  protected List<Double> lossHistory;
+  /** Loss history of each start */
+  protected List<List<Double>> lossHistory;
+
+  /** Decomposition initialization method */
+  protected INITIALIZATION_TYPE initializationType;
+
+  /** Number of starts with different random initializations */
+  protected int numStarts;
+
+  /** Number of iterations of the PARAFAC fit for the initialization */
+  protected int numParafacIterations;
+
+  /** Decomposition of the start with the best loss */
+  protected INDArray[] bestDecomposition;
+
+  /** Best loss of all starts */
+  protected double bestLoss;
+
+  /** Index of the start with the best loss */
+  protected int bestStart;
 
   protected IUpdater updater;
 
   protected GRADIENT_UPDATE_TYPE gradientUpdateType;
 
+  /** Number of threads to update the rows of a mode on */
+  protected int numThreads;
+
+  /** Pool to update the rows of a mode on during a parallel build */
+  protected transient ForkJoinPool pool;
+
+  /** Divergence between target and model that is minimized */
+  protected DIVERGENCE_TYPE divergenceType;
+
+  /** Divergence parameter of {@link DIVERGENCE_TYPE#BETA} */
+  protected double beta;
+
+  /** Number of update steps to estimate the sample mode in filter */
+  protected int numFilterIterations;
+
+  /**
+   * Set the updater that drives the gradient steps. It is used by the
+   * custom gradient update types and by the stochastic build (see {@link
+   * NTF#build(SlabSource)}), regardless of the gradient update type. A
+   * dense build with {@link GRADIENT_UPDATE_TYPE#NORMALIZED_UPDATE} ignores
+   * it.
+   *
+   * @param updater Updater
+   */
   public void setUpdater(IUpdater updater) {
-    if (useNormalizedUpdate()) {
-      logger.warn(
-	"Setting an updater has no effect when the option "
-	  + "gradient update type is set to {}.", GRADIENT_UPDATE_TYPE.NORMALIZED_UPDATE);
-    }
     this.updater = updater;
   }
 
@@ -84,6 +202,15 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
     gradientUpdateType = GRADIENT_UPDATE_TYPE.NORMALIZED_UPDATE;
     lossHistory = new ArrayList<>();
     numComponents = 10;
+    numThreads = 1;
+    divergenceType = DIVERGENCE_TYPE.FROBENIUS;
+    beta = 1.5;
+    numFilterIterations = 100;
+    initializationType = INITIALIZATION_TYPE.RANDOM;
+    numStarts = 1;
+    numParafacIterations = 50;
+    batchSize = 100;
+    numSampleIterations = 5;
     addStoppingCriterion(CriterionUtils.iterations(1000));
   }
 
@@ -108,28 +235,505 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
         "greater than 0.";
     }
 
+    if (INITIALIZATION_TYPE.PARAFAC.equals(initializationType) && x.order() < 3) {
+      return "Initialization " + INITIALIZATION_TYPE.PARAFAC + " requires " +
+	"a tensor of order three or higher but was of order " + x.order() + ".";
+    }
+
+    // The Itakura-Saito divergence is not defined for zeros in the target
+    if (!useFrobenius() && getBeta() <= 0) {
+      int numZeros = x.getData().cond(Conditions.equals(0)).sumNumber().intValue();
+      if (numZeros > 0) {
+	return "Invalid input tensor: Contains " + numZeros + " zeros, which "
+	  + "are not supported for beta <= 0.";
+      }
+    }
+
     return null;
   }
 
+  /**
+   * Check the sparse input and return an error message if something went
+   * wrong, else null.
+   *
+   * @param x Sparse data tensor
+   * @return Error message if error, else null
+   */
+  protected String check(SparseTensor x) {
+    if (x == null) {
+      return "Input tensor must not be null.";
+    }
+
+    // Check for negative values in the input tensor
+    int numNegativeValues = 0;
+    for (double v : x.getValues()) {
+      if (v < 0) {
+	numNegativeValues++;
+      }
+    }
+    if (numNegativeValues > 0) {
+      return "Invalid input tensor: Contains " + numNegativeValues + " negative values.";
+    }
+
+    for (int mode = 0; mode < x.order(); mode++) {
+      if (x.size(mode) == 0) {
+	return "Input matrix dimensions must be " +
+	  "greater than 0.";
+      }
+    }
+
+    if (!DIVERGENCE_TYPE.FROBENIUS.equals(divergenceType)
+      && !DIVERGENCE_TYPE.KULLBACK_LEIBLER.equals(divergenceType)) {
+      return "Sparse input tensors only support the divergence types "
+	+ DIVERGENCE_TYPE.FROBENIUS + " and " + DIVERGENCE_TYPE.KULLBACK_LEIBLER + ".";
+    }
+
+    if (!INITIALIZATION_TYPE.RANDOM.equals(initializationType)) {
+      return "Sparse input tensors only support the initialization type "
+	+ INITIALIZATION_TYPE.RANDOM + ".";
+    }
+
+    return null;
+  }
+
+  /**
+   * Build the factorization on a sparse tensor. Return error message if
+   * something went wrong, else null.
+   *
+   * @param x Sparse data tensor
+   * @return Error message if error, else null
+   */
+  public String build(SparseTensor x) {
+    String result = check(x);
+    if (isDebug && result != null) {
+      logger.warn("Check(input) result was: {}", result);
+    }
+    if (result == null) {
+      result = doBuild(x);
+    }
+    isFinished = true;
+    return result;
+  }
+
+  /**
+   * Check the slab source and return an error message if something went
+   * wrong, else null.
+   *
+   * @param x Slab source
+   * @return Error message if error, else null
+   */
+  protected String check(SlabSource x) {
+    if (x == null) {
+      return "Input source must not be null.";
+    }
+
+    final long[] shape = x.shape();
+    if (shape.length < 2) {
+      return "Input source must be of order two or higher but was of " +
+	"order " + shape.length + ".";
+    }
+    for (long size : shape) {
+      if (size == 0) {
+	return "Input matrix dimensions must be " +
+	  "greater than 0.";
+      }
+    }
+
+    if (!useFrobenius()) {
+      return "Stochastic builds only support the divergence type "
+	+ DIVERGENCE_TYPE.FROBENIUS + ".";
+    }
+
+    if (!INITIALIZATION_TYPE.RANDOM.equals(initializationType)) {
+      return "Stochastic builds only support the initialization type "
+	+ INITIALIZATION_TYPE.RANDOM + ".";
+    }
+
+    return null;
+  }
+
+  /**
+   * Build the factorization stochastically on mini-batches of slabs of the
+   * first mode. Return error message if something went wrong, else null.
+   * Each iteration of the stopping criteria is one pass over all batches.
+   *
+   * @param x Slab source
+   * @return Error message if error, else null
+   */
+  public String build(SlabSource x) {
+    String result = check(x);
+    if (isDebug && result != null) {
+      logger.warn("Check(input) result was: {}", result);
+    }
+    if (result == null) {
+      result = doBuild(x);
+    }
+    isFinished = true;
+    return result;
+  }
+
   @Override
   protected String doBuild(Tensor x) {
     target = x.getData();
-    numModes = target.shape().length;
-    initializeGradientManager();
-    initializeDecompositionMatrices();
+    sparseTarget = null;
+    slabSource = null;
+    targetShape = target.shape();
+    targetSquaredNorm = Math.pow(target.norm2Number().doubleValue(), 2);
+    numModes = targetShape.length;
+    targetMatricized = new INDArray[numModes];
+    for (int mode = 0; mode < numModes; mode++) {
+      targetMatricized[mode] = MathUtils.matricize(target, mode);
+    }
+    return runBuild();
+  }
 
-    while (!stoppingCriteriaMatch()) {
-      updateDecompositionStep();
-      lossHistory.add(loss);
+  /**
+   * Run the actual build on a sparse tensor.
+   *
+   * @param x Sparse data tensor
+   * @return Error message if error, else null
+   */
+  protected String doBuild(SparseTensor x) {
+    target = null;
+    targetMatricized = null;
+    slabSource = null;
+    sparseTarget = x;
+    targetShape = x.shape();
+    targetSquaredNorm = x.squaredNorm();
+    numModes = targetShape.length;
+    return runBuild();
+  }
+
+  /**
+   * Run the actual stochastic build on a slab source.
+   *
+   * @param x Slab source
+   * @return Error message if error, else null
+   */
+  protected String doBuild(SlabSource x) {
+    target = null;
+    targetMatricized = null;
+    sparseTarget = null;
+    slabSource = x;
+    targetShape = x.shape();
+    numModes = targetShape.length;
+
+    initializeDecompositionMatrices(0);
+    initializeGramMatrices();
+    lastNominator = null;
+    sharedGradientWrappers = new GradientWrapper[numModes];
+    for (int mode = 1; mode < numModes; mode++) {
+      sharedGradientWrappers[mode] =
+	new GradientWrapper(updater.clone(), targetShape[mode], numComponents);
+    }
 
+    final List<Double> losses = new ArrayList<>();
+    lossHistory = new ArrayList<>();
+    lossHistory.add(losses);
+    final Random rng = new Random(0);
+    while (!stoppingCriteriaMatch() && !isForceStop()) {
+      final String result = updateStochasticEpoch(rng);
+      if (result != null) {
+	return result;
+      }
+      updateStoppingCriteria();
+
+      if (isLossRequired()) {
+	losses.add(loss);
+      }
       if (isDebug) {
-	logger.debug("Loss={}", getLoss());
+	logger.debug("Loss={}", loss);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Run one pass over all mini-batches of the slab source in random order.
+   *
+   * @param rng Random number generator to shuffle the batches
+   * @return Error message if error, else null
+   */
+  protected String updateStochasticEpoch(Random rng) {
+    final int numSamples = (int) targetShape[0];
+    final int numBatches = (numSamples + batchSize - 1) / batchSize;
+    final List<Integer> batches = new ArrayList<>();
+    for (int batch = 0; batch < numBatches; batch++) {
+      batches.add(batch);
+    }
+    Collections.shuffle(batches, rng);
+
+    epochLoss = 0;
+    for (int batch : batches) {
+      final int from = batch * batchSize;
+      final int to = Math.min(from + batchSize, numSamples);
+      final INDArray x = slabSource.getSlabs(from, to).getData();
+      if (x.cond(new LessThan(0)).sumNumber().intValue() > 0) {
+	return "Invalid input tensor: Batch of samples " + from + " to " + to
+	  + " contains negative values.";
       }
+      epochLoss += updateStochasticBatch(x, from, to);
     }
 
+    // The Gram matrix of the sample mode covers all batches again
+    updateGramMatrix(0);
     return null;
   }
 
+  /**
+   * Update the sample decomposition of a mini-batch with multiplicative
+   * updates and take a step along the batch-averaged gradient of the shared
+   * decompositions of all other modes.
+   *
+   * @param x    Slabs of the batch
+   * @param from First sample of the batch (inclusive)
+   * @param to   Last sample of the batch (exclusive)
+   * @return Loss of the batch after the sample update
+   */
+  protected double updateStochasticBatch(INDArray x, int from, int to) {
+    final int numRows = to - from;
+    final INDArray[] batchDecomposition = decomposition.clone();
+    final INDArray rows = decomposition[0].get(NDArrayIndex.interval(from, to), NDArrayIndex.all());
+
+    // Sample mode: nominators and Gram matrices only depend on the shared modes
+    final INDArray xMatricized = MathUtils.matricize(x, 0);
+    final INDArray sampleNominator = MathUtils.mttkrp(xMatricized, getOtherDecompositions(batchDecomposition, 0));
+    final double[][] nominator = sampleNominator.toDoubleMatrix();
+    final INDArray gramProduct = getGramProduct(0);
+    final double[][] gp = gramProduct.toDoubleMatrix();
+    final double[][] u = rows.toDoubleMatrix();
+    for (int iteration = 0; iteration < numSampleIterations; iteration++) {
+      updateDecompositionRows(u, nominator, gp, 0, numRows);
+    }
+    final INDArray batchRows = Nd4j.create(u).castTo(rows.dataType());
+    rows.assign(batchRows);
+    batchDecomposition[0] = batchRows;
+
+    // Batch loss ||X||^2 - 2 <X, M> + ||M||^2
+    final INDArray batchGram = batchRows.transpose().mmul(batchRows);
+    final double xNorm = x.norm2Number().doubleValue();
+    final double batchLoss = xNorm * xNorm
+      - 2 * sampleNominator.mul(batchRows).sumNumber().doubleValue()
+      + batchGram.mul(gramProduct).sumNumber().doubleValue();
+
+    // Shared modes: batch-averaged gradients U_n * H_n - MTTKRP_n
+    final INDArray[] gradients = new INDArray[numModes];
+    for (int mode = 1; mode < numModes; mode++) {
+      final INDArray hadamard = batchGram.dup();
+      for (int currentMode = 1; currentMode < numModes; currentMode++) {
+	if (currentMode != mode) {
+	  hadamard.muli(gram[currentMode]);
+	}
+      }
+      final INDArray mttkrp = MathUtils.mttkrp(MathUtils.matricize(x, mode),
+	getOtherDecompositions(batchDecomposition, mode));
+      gradients[mode] = decomposition[mode].mmul(hadamard).subi(mttkrp).divi(numRows);
+    }
+
+    // Apply the steps and project back into the non-negative domain
+    for (int mode = 1; mode < numModes; mode++) {
+      final GradientWrapper gw = sharedGradientWrappers[mode];
+      gw.gradients.assign(gradients[mode]);
+      gw.applyUpdate();
+      decomposition[mode].subi(gw.gradients);
+      BooleanIndexing.replaceWhere(decomposition[mode], 0,
+	Conditions.lessThan(0));
+      updateGramMatrix(mode);
+    }
+
+    return batchLoss;
+  }
+
+  /**
+   * Run all starts and continue with the decomposition of the best start.
+   *
+   * @return Error message if error, else null
+   */
+  protected String runBuild() {
+    if (numStarts > 1 && !INITIALIZATION_TYPE.RANDOM.equals(initializationType)) {
+      this.numStarts = 1;
+      logger.warn("Parameter <numStarts> has no effect if initialization is {}." +
+	  " <numStarts> has therefore been reset to 1.",
+	initializationType);
+    }
+
+    lossHistory = new ArrayList<>();
+    bestDecomposition = null;
+    bestLoss = Double.MAX_VALUE;
+    bestStart = 0;
+
+    if (isParallelStarts()) {
+      runStartsParallel();
+    }
+    else {
+      for (int i = 0; i < numStarts; i++) {
+	lossHistory.add(runStart(this, i));
+
+	// Keep the decomposition if this start was better
+	updateBestStart(this, i);
+
+	resetStoppingCriteria();
+      }
+    }
+
+    // Continue with the decomposition of the best start
+    decomposition = bestDecomposition;
+    loss = bestLoss;
+    lastNominator = null;
+    initializeGramMatrices();
+
+    return null;
+  }
+
+  /**
+   * Run a single start: initialize the decomposition of the given instance
+   * and run the update steps until its stopping criteria match.
+   *
+   * @param start Instance which holds the state of this start
+   * @param seed  Index of the start, used as seed of the initialization
+   * @return Loss history of this start
+   */
+  protected List<Double> runStart(NTF start, int seed) {
+    start.initializeGradientManager();
+    start.initializeDecompositionMatrices(seed);
+    start.initializeGramMatrices();
+    start.lastNominator = null;
+
+    // Collect loss for this run
+    List<Double> losses = new ArrayList<>();
+
+    if (start.isParallel()) {
+      start.pool = new ForkJoinPool(numThreads);
+    }
+    try {
+      while (!start.stoppingCriteriaMatch() && !isForceStop()) {
+	start.updateDecompositionStep();
+
+	if (start.isLossRequired()) {
+	  losses.add(start.loss);
+	}
+	if (isDebug) {
+	  logger.debug("Loss={}", start.loss);
+	}
+      }
+    }
+    finally {
+      if (start.pool != null) {
+	start.pool.shutdownNow();
+	start.pool = null;
+      }
+    }
+
+    // The starts are compared by their final loss
+    if (numStarts > 1) {
+      start.loss = start.getLoss();
+    }
+    return losses;
+  }
+
+  /**
+   * Run all starts concurrently, each on an isolated copy of this instance
+   * (see {@link NTF#createStart()}).
+   */
+  protected void runStartsParallel() {
+    final ForkJoinPool startPool = new ForkJoinPool(Math.min(numThreads, numStarts));
+    try {
+      final List<Callable<List<Double>>> tasks = new ArrayList<>();
+      for (int i = 0; i < numStarts; i++) {
+	final int seed = i;
+	final NTF start = createStart();
+	tasks.add(() -> {
+	  List<Double> losses = runStart(start, seed);
+	  updateBestStart(start, seed);
+	  return losses;
+	});
+      }
+
+      // Collect loss histories in order of the starts
+      for (Future<List<Double>> future : startPool.invokeAll(tasks)) {
+	lossHistory.add(future.get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ModelBuildException("Interrupted while waiting for the random starts.");
+    }
+    catch (ExecutionException e) {
+      throw new ModelBuildException("Random start failed: " + e.getCause());
+    }
+    finally {
+      startPool.shutdownNow();
+    }
+  }
+
+  /**
+   * Create an isolated copy of this instance for a single start. The copy
+   * shares the configuration and the read-only target but owns its
+   * decomposition and copies of the stopping criteria.
+   *
+   * @return Instance for a single start
+   */
+  protected NTF createStart() {
+    final NTF start;
+    try {
+      start = (NTF) clone();
+    }
+    catch (CloneNotSupportedException e) {
+      throw new ModelBuildException("Could not create random start: " + e.getMessage());
+    }
+    start.stoppingCriteria = new HashMap<>();
+    for (Criterion c : stoppingCriteria.values()) {
+      if (c.getType() != CriterionType.KILL) {
+	start.stoppingCriteria.put(c.getType(), c.copy());
+      }
+    }
+    start.decomposition = null;
+    start.gram = null;
+    start.lastNominator = null;
+    start.gradientManager = null;
+    start.pool = null;
+    start.numThreads = 1;
+    start.lossHistory = new ArrayList<>();
+    return start;
+  }
+
+  /**
+   * Keep the decomposition of the given start if its loss is the lowest so
+   * far. Ties are resolved in favor of the lower start index, such that the
+   * result does not depend on the order in which parallel starts finish.
+   *
+   * @param start Instance which holds the state of the start
+   * @param seed  Index of the start
+   */
+  protected synchronized void updateBestStart(NTF start, int seed) {
+    if (bestDecomposition == null || start.loss < bestLoss
+      || (start.loss == bestLoss && seed < bestStart)) {
+      bestLoss = start.loss;
+      bestStart = seed;
+      bestDecomposition = start.decomposition;
+    }
+  }
+
+  /**
+   * Check if the starts are run in parallel.
+   *
+   * @return True if more than one start is run with more than one thread
+   */
+  protected boolean isParallelStarts() {
+    return numStarts > 1 && numThreads > 1;
+  }
+
+  /**
+   * Check if the rows of a mode are updated in parallel.
+   *
+   * @return True if more than one thread is used for the normalized update
+   * and the starts are not run in parallel
+   */
+  protected boolean isParallel() {
+    return numThreads > 1 && useNormalizedUpdate() && !isParallelStarts();
+  }
+
   protected void initializeGradientManager() {
     switch (gradientUpdateType) {
       case NORMALIZED_UPDATE:
@@ -137,7 +741,7 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
 	break;
       case STEP_UPDATE_CUSTOM:
 	gradientManager = new StepGradientManager(updater,
-	  target.shape(), numComponents);
+	  targetShape, numComponents);
 	break;
       case ITERATION_UPDATE_CUSTOM:
 	gradientManager = new IterationGradientManager(updater, numModes,
@@ -162,10 +766,23 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
     return false;
   }
 
+  /**
+   * Check if the loss needs to be computed after each step, i.e. if a
+   * stopping criterion depends on it, several starts are compared or the
+   * algorithm runs in debug mode.
+   *
+   * @return True if the loss is required
+   */
+  protected boolean isLossRequired() {
+    return isDebug
+      || numStarts > 1
+      || stoppingCriteria.containsKey(CriterionType.IMPROVEMENT);
+  }
+
   /** Update the internal state. */
   protected void updateStoppingCriteria() {
     // Update loss
-    loss = getLoss();
+    loss = isLossRequired() ? getLoss() : Double.NaN;
 
     if (isDebug && checkDecompositionForNegativeValues()) {
       logger.error("The decomposition contains negative values, this should not occur.");
@@ -183,25 +800,59 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
     }
   }
 
-  /** A single update step. Updates each decomposition value once. */
+  /**
+   * A single update step. Updates each decomposition value once.
+   * <p>
+   * The update rule (paper chapter 4) of mode r is computed for all rows at
+   * once: The nominator of U_r is the MTTKRP of the target with the other
+   * modes' decompositions, and the denominator is U_r times the Hadamard
+   * product of the other modes' Gram matrices. Components are updated one
+   * after another, such that each component sees the already updated previous
+   * components, as in the element-wise update rule. As the denominator of a
+   * row only depends on the row itself, rows are independent of each other.
+   * The Gram matrix of a mode
+   * is only read by the other modes, hence it is refreshed once after the
+   * mode has been updated.
+   */
   protected void updateDecompositionStep() {
+    final boolean iterationUpdate =
+      GRADIENT_UPDATE_TYPE.ITERATION_UPDATE_CUSTOM.equals(gradientUpdateType);
+    lastNominator = null;
+
     for (int mode = 0; mode < numModes; mode++) {
-      for (int component = 0; component < numComponents; component++) {
-	final int dimModeR = (int) target.size(mode);
-	for (int dimensionIdx = 0; dimensionIdx < dimModeR; dimensionIdx++) {
-	  if (useNormalizedUpdate()) {
-	    updateSingleDecompositionValue(mode, component, dimensionIdx);
-	  }
-	  else {
-	    updateSingleDecompositionValueCustomUpdater(mode, component, dimensionIdx);
+      if (!useFrobenius()) {
+	updateDecompositionModeBeta(mode);
+      }
+      else {
+	// Both matrices only depend on the other modes
+	final INDArray nominator = getUpdateRuleNominator(mode);
+	final INDArray gramProduct = getGramProduct(mode);
+
+	if (useNormalizedUpdate()) {
+	  updateDecompositionMode(mode, nominator, gramProduct);
+	}
+	else {
+	  for (int component = 0; component < numComponents; component++) {
+	    updateDecompositionComponentCustomUpdater(mode, component, nominator, gramProduct);
 	  }
 	}
+
+	// Nominators of the last mode only depend on final decompositions
+	if (!iterationUpdate && mode == numModes - 1) {
+	  lastNominator = nominator;
+	}
+      }
+
+      // Iteration updates leave the decomposition untouched until the end
+      if (!iterationUpdate) {
+	updateGramMatrix(mode);
       }
     }
 
 
-    if (GRADIENT_UPDATE_TYPE.ITERATION_UPDATE_CUSTOM.equals(gradientUpdateType)) {
+    if (iterationUpdate) {
       gradientManager.applyUpdate();
+      initializeGramMatrices();
     }
 
     updateStoppingCriteria();
@@ -211,128 +862,331 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
     return GRADIENT_UPDATE_TYPE.NORMALIZED_UPDATE.equals(gradientUpdateType);
   }
 
+  protected boolean useFrobenius() {
+    return DIVERGENCE_TYPE.FROBENIUS.equals(divergenceType);
+  }
+
+  /**
+   * Update all components of a mode at once with the multiplicative update
+   * rule of the beta divergence. With a custom updater, the gradient is the
+   * difference of denominator and nominator.
+   *
+   * @param mode Mode index
+   */
+  protected void updateDecompositionModeBeta(final int mode) {
+    final Tuple<INDArray, INDArray> terms = getBetaUpdateTerms(mode);
+    final INDArray nominator = terms.getFirst();
+    final INDArray denominator = terms.getSecond();
+
+    if (useNormalizedUpdate()) {
+      decomposition[mode].muli(nominator.div(denominator.add(EPS)));
+    }
+    else {
+      final INDArray gradients = denominator.sub(nominator);
+      for (int component = 0; component < numComponents; component++) {
+	gradientManager.putGradients(mode, component, gradients.getColumn(component, true));
+      }
+    }
+  }
+
+  /**
+   * Get the nominators ((M^(beta-2) * X)_(r) KR) and denominators
+   * ((M^(beta-1))_(r) KR) of the beta divergence update rule of a mode.
+   * <p>
+   * For the Kullback-Leibler divergence, the denominator is the same for all
+   * rows and only requires the column sums of the other modes. On sparse
+   * input, the nominator is the MTTKRP of X / M, which is only evaluated at
+   * the stored entries.
+   *
+   * @param mode Mode index
+   * @return Tuple of nominators and denominators, each of shape (d_mode x
+   * numComponents)
+   */
+  protected Tuple<INDArray, INDArray> getBetaUpdateTerms(final int mode) {
+    if (sparseTarget != null) {
+      final double[] values = sparseTarget.getValues();
+      final double[] modelValues = getSparseModelValues();
+      final double[] weights = new double[values.length];
+      for (int i = 0; i < values.length; i++) {
+	weights[i] = values[i] / (modelValues[i] + EPS);
+      }
+      final INDArray nominator = MathUtils.mttkrp(sparseTarget.withValues(weights), mode, decomposition);
+      final INDArray denominator = Nd4j.ones(targetShape[mode], 1).mmul(getColumnSumProduct(mode));
+      return new Tuple<>(nominator, denominator);
+    }
+
+    final INDArray kr = getKhatriRaoProduct(getOtherDecompositions(mode));
+    return getBetaUpdateTerms(mode, decomposition[mode], targetMatricized[mode], kr);
+  }
+
+  /**
+   * Get the nominators and denominators of the beta divergence update rule of
+   * a mode for a dense target.
+   *
+   * @param mode        Mode index
+   * @param u           Decomposition of the mode
+   * @param xMatricized Target matricized along the mode
+   * @param kr          Khatri-Rao product of the other modes' decompositions
+   * @return Tuple of nominators and denominators, each of shape (rows of u x
+   * numComponents)
+   */
+  protected Tuple<INDArray, INDArray> getBetaUpdateTerms(
+    final int mode, final INDArray u, final INDArray xMatricized, final INDArray kr) {
+    final double beta = getBeta();
+    final INDArray model = u.mmul(kr.transpose()).addi(EPS);
+    final INDArray nominator = xMatricized.mul(Transforms.pow(model, beta - 2, false)).mmul(kr);
+    final INDArray denominator;
+    if (beta == 1) {
+      denominator = Nd4j.ones(u.size(0), 1).mmul(getColumnSumProduct(mode));
+    }
+    else {
+      denominator = Transforms.pow(model, beta - 1, false).mmul(kr);
+    }
+    return new Tuple<>(nominator, denominator);
+  }
+
+  /**
+   * Get the Khatri-Rao product of the given decompositions, where the rows of
+   * the last decomposition run fastest.
+   *
+   * @param decompositions Decompositions
+   * @return Khatri-Rao product
+   */
+  protected INDArray getKhatriRaoProduct(final INDArray... decompositions) {
+    INDArray kr = decompositions[0];
+    for (int i = 1; i < decompositions.length; i++) {
+      kr = MathUtils.khatriRaoProductColumnWise(kr, decompositions[i]);
+    }
+    return kr;
+  }
+
+  /**
+   * Get the element-wise product of the column sums of all modes except the
+   * given one, i.e. the sum over all cells of each rank-1 component of the
+   * other modes.
+   *
+   * @param mode Mode to leave out, or -1 to include all modes
+   * @return Row vector of shape (1 x numComponents)
+   */
+  protected INDArray getColumnSumProduct(final int mode) {
+    final INDArray product = Nd4j.ones(1, numComponents);
+    for (int currentMode = 0; currentMode < numModes; currentMode++) {
+      if (currentMode != mode) {
+	product.muli(decomposition[currentMode].sum(true, 0));
+      }
+    }
+    return product;
+  }
+
+  /**
+   * Evaluate the model at the stored entries of the sparse target.
+   *
+   * @return Model values, one per stored entry
+   */
+  protected double[] getSparseModelValues() {
+    final double[][][] U = new double[numModes][][];
+    for (int mode = 0; mode < numModes; mode++) {
+      U[mode] = decomposition[mode].toDoubleMatrix();
+    }
+
+    final double[] modelValues = new double[sparseTarget.numNonZeros()];
+    for (int i = 0; i < modelValues.length; i++) {
+      for (int component = 0; component < numComponents; component++) {
+	double product = 1;
+	for (int mode = 0; mode < numModes; mode++) {
+	  product *= U[mode][sparseTarget.getIndices(mode)[i]][component];
+	}
+	modelValues[i] += product;
+      }
+    }
+    return modelValues;
+  }
+
+  /**
+   * Update all components of a mode as described in the paper. The rows are
+   * split into one block per thread if the update runs in parallel.
+   *
+   * @param mode        Paper variable: r
+   * @param nominator   Update rule nominators of all components of the mode
+   * @param gramProduct Hadamard product of the other modes' Gram matrices
+   */
+  protected void updateDecompositionMode(
+    final int mode, final INDArray nominator, final INDArray gramProduct) {
+    final double[][] u = decomposition[mode].toDoubleMatrix();
+    final double[][] nom = nominator.toDoubleMatrix();
+    final double[][] gp = gramProduct.toDoubleMatrix();
+    final int numRows = u.length;
+
+    if (pool == null || numRows < 2) {
+      updateDecompositionRows(u, nom, gp, 0, numRows);
+    }
+    else {
+      final int numBlocks = Math.min(numThreads, numRows);
+      final List<Callable<Void>> blocks = new ArrayList<>();
+      for (int block = 0; block < numBlocks; block++) {
+	final int from = (int) ((long) block * numRows / numBlocks);
+	final int to = (int) ((long) (block + 1) * numRows / numBlocks);
+	blocks.add(() -> {
+	  updateDecompositionRows(u, nom, gp, from, to);
+	  return null;
+	});
+      }
+      try {
+	for (Future<Void> future : pool.invokeAll(blocks)) {
+	  future.get();
+	}
+      }
+      catch (InterruptedException e) {
+	Thread.currentThread().interrupt();
+	throw new ModelBuildException("Interrupted while updating the rows of mode " + mode + ".");
+      }
+      catch (ExecutionException e) {
+	throw new ModelBuildException("Row update of mode " + mode + " failed: " + e.getCause());
+      }
+    }
+
+    decomposition[mode].assign(Nd4j.create(u));
+  }
+
+  /**
+   * Apply the update rule to a range of rows of a mode. Components are updated
+   * one after another, such that each component sees the already updated
+   * previous components of the row.
+   *
+   * @param u           Decomposition of the mode, updated in place
+   * @param nominator   Update rule nominators of the mode
+   * @param gramProduct Hadamard product of the other modes' Gram matrices
+   * @param from        First row (inclusive)
+   * @param to          Last row (exclusive)
+   */
+  protected void updateDecompositionRows(
+    final double[][] u, final double[][] nominator, final double[][] gramProduct,
+    final int from, final int to) {
+    for (int row = from; row < to; row++) {
+      final double[] uRow = u[row];
+      for (int component = 0; component < numComponents; component++) {
+	double denominator = 0;
+	for (int j = 0; j < numComponents; j++) {
+	  denominator += uRow[j] * gramProduct[j][component];
+	}
+	uRow[component] *= nominator[row][component] / (denominator + EPS);
+      }
+    }
+  }
+
   /**
-   * Update a single variable as described in the paper.
+   * Update a single component of a mode as described in the paper, with the
+   * modification of a learning rate.
    *
-   * @param mode         Paper variable: r
-   * @param component    Paper variable: s
-   * @param dimensionIdx Paper variable l
+   * @param mode        Paper variable: r
+   * @param component   Paper variable: s
+   * @param nominator   Update rule nominators of all components of the mode
+   * @param gramProduct Hadamard product of the other modes' Gram matrices
    */
-  private void updateSingleDecompositionValue(
-    final int mode, final int component, final int dimensionIdx) {
-    double nominator = getUpdateRuleNominator(mode, component, dimensionIdx);
-    double denominator = getUpdateRuleDenominator(mode, component, dimensionIdx);
-    final double uValueOld = getDecompositionValue(mode, dimensionIdx, component);
-    double uValueNew = uValueOld * (nominator / (denominator + EPS));
+  protected void updateDecompositionComponentCustomUpdater(
+    final int mode, final int component, final INDArray nominator,
+    final INDArray gramProduct) {
+    final INDArray denominator = getUpdateRuleDenominator(mode, component, gramProduct);
+    final INDArray gradients = denominator.sub(nominator.getColumn(component, true));
 
-    // Update u
-    putSingleDecompositionValue(mode, dimensionIdx, component, uValueNew);
+    gradientManager.putGradients(mode, component, gradients);
   }
 
   /**
-   * Update a single variable as described in the paper, with the modification of a learning rate.
+   * Get the nominators in the update rule specified in the paper (chapter 4)
+   * for all rows and components of a mode, i.e. the MTTKRP of the target with
+   * the other modes' decompositions.
    *
-   * @param mode         Paper variable: r
-   * @param component    Paper variable: s
-   * @param dimensionIdx Paper variable l
+   * @param mode Mode index
+   * @return Update rule nominators of shape (d_mode x numComponents)
    */
-  protected void updateSingleDecompositionValueCustomUpdater(
-    final int mode, final int component, final int dimensionIdx) {
-
-    double nominator = getUpdateRuleNominator(mode, component, dimensionIdx);
-    double denominator = getUpdateRuleDenominator(mode, component, dimensionIdx);
-    final double gradient = denominator - nominator;
-
-    gradientManager.putGradient(mode, dimensionIdx, component, gradient);
+  protected INDArray getUpdateRuleNominator(final int mode) {
+    if (sparseTarget != null) {
+      return MathUtils.mttkrp(sparseTarget, mode, decomposition);
+    }
+    return MathUtils.mttkrp(targetMatricized[mode], getOtherDecompositions(mode));
   }
 
   /**
-   * Get the nominator in the update rule specified in the paper (chapter 4).
+   * Get the decompositions of all modes except the given one in descending
+   * mode order, i.e. the Khatri-Rao arguments matching the column order of the
+   * matricized target.
    *
-   * @param mode      Mode index
-   * @param component Component index
-   * @param dimension Dimension index
-   * @return Update rule nominator.
+   * @param mode Mode to leave out
+   * @return Decompositions of the other modes
    */
-  protected double getUpdateRuleNominator(
-    final int mode, final int component, final int dimension) {
-    final long[] gShapeWithoutCurrentMode = getTargetShapeWithoutMode(mode);
-    NdIndexIterator shapeIndexIterator = new NdIndexIterator(gShapeWithoutCurrentMode);
-    double sum = 0;
-    long maxIterations = Arrays.stream(gShapeWithoutCurrentMode).reduce(1, (prod, i) -> prod * i);
-    int currentIteration = 0;
-    while (shapeIndexIterator.hasNext() && currentIteration++ < maxIterations) {
-      final long[] currentIndices = shapeIndexIterator.next();
-      sum += getNextIndexStepInNominatorSum(mode, component, dimension, currentIndices);
-    }
-    return sum;
+  protected INDArray[] getOtherDecompositions(final int mode) {
+    return getOtherDecompositions(decomposition, mode);
   }
 
   /**
-   * Calculate a step in the nominator sum (see update rule, paper chapter 4)
+   * Get the given decompositions of all modes except the given one in
+   * descending mode order.
    *
-   * @param mode      Mode index
-   * @param component Component index
-   * @param dimension Dimension index
-   * @param indices   Indices that point to the target value.
-   * @return Nominator sum step result.
+   * @param decompositions Decompositions of all modes
+   * @param mode           Mode to leave out
+   * @return Decompositions of the other modes
    */
-  private double getNextIndexStepInNominatorSum(
-    int mode, int component, int dimension, long[] indices) {
-    final long[] currentIndicesExpanded = MathUtils.extendIdxToArray(indices, mode, dimension);
-    double product = getUpdateRuleNominatorProduct(mode, component, currentIndicesExpanded);
-    final double gValueAtCurrentIndices = target.getDouble(currentIndicesExpanded);
-    return gValueAtCurrentIndices * product;
+  protected INDArray[] getOtherDecompositions(final INDArray[] decompositions, final int mode) {
+    final INDArray[] others = new INDArray[numModes - 1];
+    int idx = 0;
+    for (int currentMode = numModes - 1; currentMode >= 0; currentMode--) {
+      if (currentMode != mode) {
+	others[idx++] = decompositions[currentMode];
+      }
+    }
+    return others;
   }
 
   /**
-   * Get the product in the update rule nominator specified in the paper (chapter 4).
+   * Get the Hadamard product of the cached Gram matrices of all modes except
+   * the given one.
    *
-   * @param mode      Mode index
-   * @param component Component index
-   * @param indices   Set of indices that point to the correct decomposition element
-   * @return Update rule denominator.
+   * @param mode Mode to leave out, or -1 to include all modes
+   * @return Hadamard product of the Gram matrices of shape (numComponents x
+   * numComponents)
    */
-  private double getUpdateRuleNominatorProduct(int mode, int component, long[] indices) {
-    double product = 1;
+  protected INDArray getGramProduct(final int mode) {
+    final INDArray gramProduct = Nd4j.ones(numComponents, numComponents);
     for (int currentMode = 0; currentMode < numModes; currentMode++) {
-      // Skip mode m
-      if (currentMode == mode) {
-	continue;
+      if (currentMode != mode) {
+	gramProduct.muli(gram[currentMode]);
       }
-      final long row = indices[currentMode];
-      double uValue = getDecompositionValue(currentMode, row, component);
-      product = product * uValue;
     }
-    return product;
+    return gramProduct;
   }
 
   /**
-   * Get the denominator in the update rule specified in the paper (chapter 4).
+   * Recompute the cached Gram matrix U^T*U of the given mode from its current
+   * decomposition.
    *
-   * @param mode      Mode index
-   * @param component Component index
-   * @param dimension Dimension index
-   * @return Update rule denominator.
-   */
-  protected double getUpdateRuleDenominator(
-    final int mode, final int component, final int dimension) {
-    double sum = 0;
-    for (int currentComponent = 0; currentComponent < numComponents; currentComponent++) {
-      double product = 1.0;
-      for (int currentMode = 0; currentMode < numModes; currentMode++) {
-	if (currentMode == mode) {
-	  continue;
-	}
-	final INDArray uColJ = getDecompositionComponent(currentMode, currentComponent);
-	final INDArray uColS = getDecompositionComponent(currentMode, component);
-	final double uProdResult = uColJ.transpose().mmul(uColS).getDouble(0);
-	product = product * uProdResult;
-      }
+   * @param mode Mode index
+   */
+  protected void updateGramMatrix(final int mode) {
+    gram[mode] = decomposition[mode].transpose().mmul(decomposition[mode]);
+  }
 
-      sum = sum + getDecompositionValue(mode, dimension, currentComponent) * product;
+  /** Compute the cached Gram matrices of all modes. */
+  protected void initializeGramMatrices() {
+    gram = new INDArray[numModes];
+    for (int mode = 0; mode < numModes; mode++) {
+      updateGramMatrix(mode);
     }
-    return sum;
+  }
+
+  /**
+   * Get the denominators in the update rule specified in the paper (chapter 4)
+   * for all rows of a component, based on the current decomposition of the
+   * mode.
+   *
+   * @param mode        Mode index
+   * @param component   Component index
+   * @param gramProduct Hadamard product of the other modes' Gram matrices
+   * @return Update rule denominators as column vector.
+   */
+  protected INDArray getUpdateRuleDenominator(
+    final int mode, final int component, final INDArray gramProduct) {
+    return decomposition[mode].mmul(gramProduct.getColumn(component, true));
   }
 
   /**
@@ -372,35 +1226,247 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
   }
 
   /**
-   * Construct the shape that is equal to the target's shape but with the given mode removed.
+   * Initialize #numModes matrices where the matrix at index i is of shape (d_i x numComponents) and
+   * d_i is the dimension of the i-th mode.
    *
-   * @param mode Mode to leave out
-   * @return Target shape with the given mode removed.
+   * @param start Index of the start, used as seed of the random initialization
+   */
+  protected void initializeDecompositionMatrices(int start) {
+    switch (initializationType) {
+      case NNDSVD:
+	initializeNndsvd();
+	break;
+      case PARAFAC:
+	initializeParafac();
+	break;
+      default:
+	final long seed = (long) start * numModes * 1000;
+	decomposition = new INDArray[numModes];
+	for (int i = 0; i < numModes; i++) {
+	  final long dimModeI = targetShape[i];
+	  decomposition[i] = Transforms.abs(Nd4j.randn(dimModeI, numComponents, seed + i * 1000));
+	}
+    }
+  }
+
+  /**
+   * Initialize each mode with NNDSVD (Boutsidis and Gallopoulos, 2008) of its
+   * unfolding: For each of the leading singular vector pairs (u, v), the
+   * dominant one of its positive and negative part is used. The columns of
+   * the first mode are scaled with the singular value and the norms of the
+   * dominant parts, the columns of all other modes have unit norm, such that
+   * the initial model matches the rank-1 terms of the first unfolding. As in
+   * the NNDSVDa variant, zeros are replaced by the mean of the mode's
+   * decomposition, since multiplicative updates cannot leave zero.
    */
-  protected long[] getTargetShapeWithoutMode(final int mode) {
-    final long[] gShape = target.shape();
-    return MathUtils.removeIdxFromArray(gShape, mode);
+  protected void initializeNndsvd() {
+    decomposition = new INDArray[numModes];
+    for (int mode = 0; mode < numModes; mode++) {
+      final int rows = (int) targetShape[mode];
+      final Map<String, INDArray> svd =
+	MathUtils.randomizedSvd(targetMatricized[mode], numComponents, 10, 2, mode);
+      final double[][] U = svd.get("U").toDoubleMatrix();
+      final double[][] V = svd.get("V").toDoubleMatrix();
+      final double[] sval = svd.get("SVAL").toDoubleVector();
+      final double[][] W = new double[rows][numComponents];
+
+      for (int component = 0; component < sval.length; component++) {
+	// Norms of the positive and negative parts of u and v
+	double upNorm = 0, unNorm = 0, vpNorm = 0, vnNorm = 0;
+	for (double[] row : U) {
+	  final double value = row[component];
+	  upNorm += value > 0 ? value * value : 0;
+	  unNorm += value < 0 ? value * value : 0;
+	}
+	for (double[] row : V) {
+	  final double value = row[component];
+	  vpNorm += value > 0 ? value * value : 0;
+	  vnNorm += value < 0 ? value * value : 0;
+	}
+	upNorm = Math.sqrt(upNorm);
+	unNorm = Math.sqrt(unNorm);
+	vpNorm = Math.sqrt(vpNorm);
+	vnNorm = Math.sqrt(vnNorm);
+
+	final boolean positive = upNorm * vpNorm >= unNorm * vnNorm;
+	final double norm = positive ? upNorm : unNorm;
+	final double sigma = positive ? upNorm * vpNorm : unNorm * vnNorm;
+	final double scale = mode == 0 ? sval[component] * sigma : 1.0;
+	if (norm == 0) {
+	  continue;
+	}
+	for (int row = 0; row < rows; row++) {
+	  final double value = positive ? U[row][component] : -U[row][component];
+	  W[row][component] = Math.max(0, value) / norm * scale;
+	}
+      }
+
+      decomposition[mode] = fillZeros(W, mode);
+    }
   }
 
   /**
-   * Initialize #numModes matrices where the matrix at index i is of shape (d_i x numComponents) and
-   * d_i is the dimension of the i-th mode.
+   * Initialize the decomposition from a PARAFAC fit with
+   * {@link NTF#getNumParafacIterations()} iterations. Loading matrix columns
+   * with a negative sum are flipped in pairs of modes, such that the model is
+   * unchanged, and remaining negative values are clipped. Zeros are replaced
+   * by the mean of the mode's decomposition.
    */
-  protected void initializeDecompositionMatrices() {
-    final int seed = 0;
+  protected void initializeParafac() {
+    final PARAFAC parafac = new PARAFAC();
+    parafac.setNumComponents(numComponents);
+    parafac.addStoppingCriterion(CriterionUtils.iterations(numParafacIterations));
+    final String result = parafac.build(Tensor.create(target));
+    if (result != null) {
+      throw new ModelBuildException("PARAFAC initialization failed: " + result);
+    }
+
+    final Map<String, Tensor> loadingMatrices = parafac.getLoadingMatrices();
+    final double[][][] loadings = new double[numModes][][];
+    for (int mode = 0; mode < numModes; mode++) {
+      final String key = String.valueOf((char) ('A' + mode));
+      loadings[mode] = loadingMatrices.get(key).getData().toDoubleMatrix();
+    }
+
+    for (int component = 0; component < numComponents; component++) {
+      // Collect the modes with a negative column sum
+      final List<Integer> negativeModes = new ArrayList<>();
+      int smallestMode = -1;
+      double smallestSum = Double.MAX_VALUE;
+      for (int mode = 0; mode < numModes; mode++) {
+	double sum = 0;
+	for (double[] row : loadings[mode]) {
+	  sum += row[component];
+	}
+	if (sum < 0) {
+	  negativeModes.add(mode);
+	  if (-sum < smallestSum) {
+	    smallestSum = -sum;
+	    smallestMode = mode;
+	  }
+	}
+      }
+
+      // Only an even number of flips keeps the model unchanged
+      if (negativeModes.size() % 2 == 1) {
+	negativeModes.remove(Integer.valueOf(smallestMode));
+      }
+      for (int mode : negativeModes) {
+	for (double[] row : loadings[mode]) {
+	  row[component] = -row[component];
+	}
+      }
+    }
+
     decomposition = new INDArray[numModes];
-    for (int i = 0; i < numModes; i++) {
-      final long dimModeI = target.size(i);
-      decomposition[i] = Transforms.abs(Nd4j.randn(dimModeI, numComponents, seed + i * 1000));
+    for (int mode = 0; mode < numModes; mode++) {
+      for (double[] row : loadings[mode]) {
+	for (int component = 0; component < numComponents; component++) {
+	  row[component] = Math.max(0, row[component]);
+	}
+      }
+      decomposition[mode] = fillZeros(loadings[mode], mode);
+    }
+  }
+
+  /**
+   * Replace the zeros of an initial decomposition by its mean value, or by
+   * random values of the first start if the decomposition is all zero.
+   *
+   * @param W    Non-negative initial decomposition
+   * @param mode Mode index
+   * @return Decomposition without zeros
+   */
+  protected INDArray fillZeros(double[][] W, int mode) {
+    double mean = 0;
+    for (double[] row : W) {
+      for (double value : row) {
+	mean += value;
+      }
+    }
+    mean /= (double) W.length * numComponents;
+
+    final INDArray res;
+    if (mean <= 0) {
+      res = Transforms.abs(Nd4j.randn(W.length, numComponents, mode * 1000));
+    }
+    else {
+      for (double[] row : W) {
+	for (int component = 0; component < numComponents; component++) {
+	  if (row[component] <= 0) {
+	    row[component] = mean;
+	  }
+	}
+      }
+      res = Nd4j.create(W);
     }
+    return res.castTo(target.dataType());
   }
 
+  /**
+   * Compute the squared distance between the target and the model as
+   * ||X||^2 - 2 &lt;X, M&gt; + ||M||^2, without reconstructing the model.
+   * The inner product is the sum over the Hadamard product of the last mode's
+   * decomposition and its update rule nominators (i.e. the MTTKRP), which are
+   * reused from the latest step if possible. ||M||^2 is the sum over the
+   * Hadamard product of all Gram matrices.
+   *
+   * @return Loss
+   */
   protected double getLoss() {
-    if (target == null) {
+    if (slabSource != null) {
+      return epochLoss;
+    }
+    if ((target == null && sparseTarget == null) || gram == null) {
       logger.warn("Model has not been initialized yet. Returning Double.POSITIVE_INFINITY as loss.");
       return Double.POSITIVE_INFINITY;
     }
-    return target.squaredDistance(getReconstruction());
+    if (!useFrobenius()) {
+      return getDivergenceLoss();
+    }
+
+    final int lastMode = numModes - 1;
+    final double[][] nominator = (lastNominator != null ?
+      lastNominator : getUpdateRuleNominator(lastMode)).toDoubleMatrix();
+    final double[][] u = decomposition[lastMode].toDoubleMatrix();
+    double inner = 0;
+    for (int row = 0; row < u.length; row++) {
+      for (int component = 0; component < numComponents; component++) {
+	inner += nominator[row][component] * u[row][component];
+      }
+    }
+
+    final double modelNorm = getGramProduct(-1).sumNumber().doubleValue();
+
+    // Guard against cancellation for near perfect fits
+    return Math.max(0, targetSquaredNorm - 2 * inner + modelNorm);
+  }
+
+  /**
+   * Compute the beta divergence between the target and the model. On sparse
+   * input, the Kullback-Leibler divergence is computed as sum_{x &gt; 0} x log
+   * (x / m) - sum x + sum m, where the sum of the model only requires the
+   * column sums of all modes.
+   *
+   * @return Loss
+   */
+  protected double getDivergenceLoss() {
+    if (sparseTarget != null) {
+      final double[] values = sparseTarget.getValues();
+      final double[] modelValues = getSparseModelValues();
+      double sum = 0;
+      for (int i = 0; i < values.length; i++) {
+	if (values[i] > 0) {
+	  sum += values[i] * Math.log(values[i] / (modelValues[i] + EPS));
+	}
+	sum -= values[i];
+      }
+      return sum + getColumnSumProduct(-1).sumNumber().doubleValue();
+    }
+
+    final INDArray kr = getKhatriRaoProduct(getOtherDecompositions(0));
+    final INDArray model = decomposition[0].mmul(kr.transpose()).addi(EPS);
+    return MathUtils.betaDivergence(targetMatricized[0], model, getBeta());
   }
 
   /**
@@ -411,7 +1477,7 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
    * @return Target reconstruction
    */
   protected INDArray getReconstruction() {
-    INDArray Greconstructed = Nd4j.zeros(target.shape());
+    INDArray Greconstructed = Nd4j.zeros(targetShape);
     for (int k = 0; k < numComponents; k++) {
       // Rebuild each rank-1 tensor by taking the outer products over all modes
       INDArray ccCurrentModeComponent = getDecompositionComponent(0, k);
@@ -431,7 +1497,17 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
   protected void resetState() {
     super.resetState();
     decomposition = null;
+    targetMatricized = null;
+    sparseTarget = null;
+    slabSource = null;
+    sharedGradientWrappers = null;
+    lastNominator = null;
+    bestDecomposition = null;
+    gram = null;
     numModes = 0;
+    lossHistory = new ArrayList<>();
+    bestLoss = Double.MAX_VALUE;
+    bestStart = 0;
   }
 
   public int getNumComponents() {
@@ -454,6 +1530,241 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
     return ImmutableSet.of(CriterionType.IMPROVEMENT, CriterionType.ITERATION, CriterionType.TIME);
   }
 
+  /**
+   * Get number of threads to update the rows of a mode on.
+   *
+   * @return Number of threads
+   */
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Set number of threads to update the rows of a mode on. Only applies to
+   * {@link GRADIENT_UPDATE_TYPE#NORMALIZED_UPDATE}, the custom updaters always
+   * run sequentially.
+   *
+   * @param numThreads Number of threads
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      logger.warn("Number of threads must be greater " +
+	"than zero.");
+    }
+    else {
+      this.numThreads = numThreads;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the divergence between target and model that is minimized.
+   *
+   * @return Divergence type
+   */
+  public DIVERGENCE_TYPE getDivergenceType() {
+    return divergenceType;
+  }
+
+  /**
+   * Set the divergence between target and model that is minimized.
+   *
+   * @param divergenceType Divergence type
+   */
+  public void setDivergenceType(DIVERGENCE_TYPE divergenceType) {
+    this.divergenceType = divergenceType;
+    resetState();
+  }
+
+  /**
+   * Get the beta parameter of the divergence, which is fixed for all
+   * divergence types except {@link DIVERGENCE_TYPE#BETA}.
+   *
+   * @return Beta
+   */
+  public double getBeta() {
+    switch (divergenceType) {
+      case FROBENIUS:
+	return 2;
+      case KULLBACK_LEIBLER:
+	return 1;
+      case ITAKURA_SAITO:
+	return 0;
+      default:
+	return beta;
+    }
+  }
+
+  /**
+   * Set the beta parameter of {@link DIVERGENCE_TYPE#BETA}.
+   *
+   * @param beta Beta
+   */
+  public void setBeta(double beta) {
+    this.beta = beta;
+    resetState();
+  }
+
+  /**
+   * Get the number of update steps to estimate the sample mode in {@link
+   * NTF#filter(Tensor)}.
+   *
+   * @return Number of filter iterations
+   */
+  public int getNumFilterIterations() {
+    return numFilterIterations;
+  }
+
+  /**
+   * Set the number of update steps to estimate the sample mode in {@link
+   * NTF#filter(Tensor)}.
+   *
+   * @param numFilterIterations Number of filter iterations
+   */
+  public void setNumFilterIterations(int numFilterIterations) {
+    if (numFilterIterations < 1) {
+      logger.warn("Number of filter iterations must be greater " +
+	"than zero.");
+    }
+    else {
+      this.numFilterIterations = numFilterIterations;
+    }
+  }
+
+  /**
+   * Get the loss history of each start. Losses are only recorded if they are
+   * computed during the build, i.e. with an improvement criterion, with more
+   * than one start or in debug mode. Otherwise the history of each start is
+   * empty.
+   *
+   * @return Loss history of each start
+   */
+  public List<List<Double>> getLossHistory() {
+    return lossHistory;
+  }
+
+  /**
+   * Get the decomposition initialization method.
+   *
+   * @return Initialization type
+   */
+  public INITIALIZATION_TYPE getInitializationType() {
+    return initializationType;
+  }
+
+  /**
+   * Set the decomposition initialization method.
+   *
+   * @param initializationType Initialization type
+   */
+  public void setInitializationType(INITIALIZATION_TYPE initializationType) {
+    this.initializationType = initializationType;
+    resetState();
+  }
+
+  /**
+   * Get the number of starts with different random initializations.
+   *
+   * @return Number of starts
+   */
+  public int getNumStarts() {
+    return numStarts;
+  }
+
+  /**
+   * Set the number of starts with different random initializations. The
+   * decomposition of the start with the lowest loss is kept.
+   *
+   * @param numStarts Number of starts
+   */
+  public void setNumStarts(int numStarts) {
+    if (numStarts < 1) {
+      logger.warn("Number of starts must be greater " +
+	"than zero.");
+    }
+    else {
+      this.numStarts = numStarts;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the number of iterations of the PARAFAC fit for the initialization.
+   *
+   * @return Number of PARAFAC iterations
+   */
+  public int getNumParafacIterations() {
+    return numParafacIterations;
+  }
+
+  /**
+   * Set the number of iterations of the PARAFAC fit for the initialization.
+   *
+   * @param numParafacIterations Number of PARAFAC iterations
+   */
+  public void setNumParafacIterations(int numParafacIterations) {
+    if (numParafacIterations < 1) {
+      logger.warn("Number of PARAFAC iterations must be greater " +
+	"than zero.");
+    }
+    else {
+      this.numParafacIterations = numParafacIterations;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the number of samples per mini-batch in stochastic builds.
+   *
+   * @return Batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Set the number of samples per mini-batch in stochastic builds.
+   *
+   * @param batchSize Batch size
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) {
+      logger.warn("Batch size must be greater " +
+	"than zero.");
+    }
+    else {
+      this.batchSize = batchSize;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the number of sample mode updates per mini-batch in stochastic
+   * builds.
+   *
+   * @return Number of sample iterations
+   */
+  public int getNumSampleIterations() {
+    return numSampleIterations;
+  }
+
+  /**
+   * Set the number of sample mode updates per mini-batch in stochastic
+   * builds.
+   *
+   * @param numSampleIterations Number of sample iterations
+   */
+  public void setNumSampleIterations(int numSampleIterations) {
+    if (numSampleIterations < 1) {
+      logger.warn("Number of sample iterations must be greater " +
+	"than zero.");
+    }
+    else {
+      this.numSampleIterations = numSampleIterations;
+      resetState();
+    }
+  }
+
   public GRADIENT_UPDATE_TYPE getGradientUpdateType() {
     return gradientUpdateType;
   }
@@ -480,6 +1791,66 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
     return loadingMatrices;
   }
 
+  /**
+   * Estimate the decomposition of the first (sample) mode of new data, while
+   * the decompositions of all other modes are kept fixed. All samples are
+   * estimated at once with {@link NTF#getNumFilterIterations()} multiplicative
+   * updates of the selected divergence, starting from a constant
+   * decomposition.
+   *
+   * @param input Input data, which must match the training data in all but
+   *              the first mode
+   * @return Sample mode decomposition of shape (input.size(0) x numComponents)
+   */
+  @Override
+  public Tensor filter(Tensor input) {
+
+    // Check if the model has been built yet
+    if (!isFinished() || decomposition == null) {
+      throw new ModelNotBuiltException(
+	"Trying to invoke filter(Tensor input) while the model has not been " +
+	  "built yet."
+      );
+    }
+
+    if (input.order() != numModes) {
+      throw new InvalidInputException("Input must be of order " +
+	numModes + " but was of order " + input.order() + ".");
+    }
+    for (int mode = 1; mode < numModes; mode++) {
+      if (input.size(mode) != targetShape[mode]) {
+	throw new InvalidInputException("Input dimension " + mode + " must be of size " +
+	  targetShape[mode] + " but was of size " + input.size(mode) + ".");
+      }
+    }
+    if (input.getData().cond(new LessThan(0)).sumNumber().intValue() > 0) {
+      throw new InvalidInputException("Input must not contain negative values.");
+    }
+
+    final int numSamples = (int) input.size(0);
+    final INDArray xMatricized = MathUtils.matricize(input.getData(), 0);
+    final INDArray[] otherDecompositions = getOtherDecompositions(0);
+
+    if (useFrobenius()) {
+      // Nominators and Gram matrices do not depend on the sample mode
+      final double[][] nominator = MathUtils.mttkrp(xMatricized, otherDecompositions).toDoubleMatrix();
+      final double[][] gramProduct = getGramProduct(0).toDoubleMatrix();
+      final double[][] u = Nd4j.ones(numSamples, numComponents).toDoubleMatrix();
+      for (int iteration = 0; iteration < numFilterIterations; iteration++) {
+	updateDecompositionRows(u, nominator, gramProduct, 0, numSamples);
+      }
+      return Tensor.create(u);
+    }
+
+    final INDArray kr = getKhatriRaoProduct(otherDecompositions);
+    final INDArray u = Nd4j.ones(numSamples, numComponents);
+    for (int iteration = 0; iteration < numFilterIterations; iteration++) {
+      final Tuple<INDArray, INDArray> terms = getBetaUpdateTerms(0, u, xMatricized, kr);
+      u.muli(terms.getFirst().div(terms.getSecond().add(EPS)));
+    }
+    return Tensor.create(u);
+  }
+
   /**
    * Enum defining the type of updates that shall be applied to construct the
    * decomposition values.
@@ -502,6 +1873,28 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
     ITERATION_UPDATE_CUSTOM
   }
 
+  /** Initialization method of the decomposition. */
+  public enum INITIALIZATION_TYPE {
+    /** Absolute values of standard normal samples, seeded per start. */
+    RANDOM,
+    /** NNDSVD of the unfolding of each mode. */
+    NNDSVD,
+    /** Clipped loading matrices of a PARAFAC fit. */
+    PARAFAC
+  }
+
+  /** Divergence between target and model that is minimized. */
+  public enum DIVERGENCE_TYPE {
+    /** Squared Frobenius norm of the difference, as described in the paper. */
+    FROBENIUS,
+    /** Generalized Kullback-Leibler divergence (beta = 1), suited for counts. */
+    KULLBACK_LEIBLER,
+    /** Itakura-Saito divergence (beta = 0), requires strictly positive data. */
+    ITAKURA_SAITO,
+    /** General beta divergence with a configurable beta. */
+    BETA
+  }
+
   /** A class that handles gradient updates for a specific set of gradients. */
   private static class GradientWrapper implements Serializable {
 
@@ -525,14 +1918,13 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
     }
 
     /**
-     * Put a gradient at the specified index in the gradient matrix.
+     * Put the gradients of all rows of a component into the gradient matrix.
      *
-     * @param row       Row index
      * @param component Component index
-     * @param gradient  Gradient value
+     * @param gradients Gradient column vector
      */
-    private void putGradient(int row, int component, double gradient) {
-      gradients.putScalar(row, component, gradient);
+    private void putGradients(int component, INDArray gradients) {
+      this.gradients.putColumn(component, gradients);
     }
 
     /**
@@ -552,17 +1944,14 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
 
 
     /**
-     * Put a gradient at the specified index in the gradient matrix.
+     * Put the gradients of all rows of a component of a mode.
      *
-     * @param row       Row index
+     * @param mode      Mode index
      * @param component Component index
-     * @param gradient  Gradient value
-     * @Override protected boolean isBatchUpdater() {
-     * return false;
-     * }
+     * @param gradients Gradient column vector
      */
-    protected abstract void putGradient(int mode, int row, int component,
-					double gradient);
+    protected abstract void putGradients(int mode, int component,
+					 INDArray gradients);
 
     /**
      * Apply the gradient updates for each GradientWrapper, given the update rules in the underlying
@@ -590,13 +1979,13 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
 				     int numComponents) {
       gradientWrappers = new GradientWrapper[numModes];
       for (int i = 0; i < numModes; i++) {
-	long dimModeI = target.size(i);
+	long dimModeI = targetShape[i];
 	gradientWrappers[i] = new GradientWrapper(updater.clone(), dimModeI, numComponents);
       }
     }
 
-    protected void putGradient(int mode, int row, int component, double gradient) {
-      gradientWrappers[mode].putGradient(row, component, gradient);
+    protected void putGradients(int mode, int component, INDArray gradients) {
+      gradientWrappers[mode].putGradients(component, gradients);
     }
 
     protected void applyUpdate() {
@@ -615,52 +2004,47 @@ public class NTF extends UnsupervisedAlgorithm implements LoadingMatrixAccessor
   }
 
   /**
-   * Manager class, that handles all gradient matrices, updaters und
-   * gradient updates batch-wise for each mode. Updates occur after each
-   * iteration (calculating the gradients for each single decomposition value
-   * once.
+   * Manager class, that handles the gradients and updaters of each component
+   * of each mode. Updates of a component are applied to all rows at once,
+   * right after its gradients have been computed. Since the updaters work
+   * element-wise and each row is updated once per step, this is equivalent to
+   * a separate updater per decomposition value.
    */
   private class StepGradientManager extends GradientManager implements Serializable {
 
     private static final long serialVersionUID = 6247999674170790763L;
 
-    /** One gradient wrapper for each mode */
-    protected GradientWrapper[][][] gradientWrappers;
+    /** One gradient wrapper for each component of each mode */
+    protected GradientWrapper[][] gradientWrappers;
 
     private StepGradientManager(IUpdater updater, long[] targetShape,
 				int numComponents) {
-      gradientWrappers = new GradientWrapper[targetShape.length][0][0];
+      gradientWrappers = new GradientWrapper[targetShape.length][numComponents];
       for (int mode = 0; mode < targetShape.length; mode++) {
-	int modeDim = (int) targetShape[mode];
-	gradientWrappers[mode] = new GradientWrapper[modeDim][numComponents];
-	for (int row = 0; row < modeDim; row++) {
-	  for (int component = 0; component < numComponents; component++) {
-
-	    GradientWrapper gw = new GradientWrapper(updater.clone(), 1, 1);
-	    gradientWrappers[mode][row][component] = gw;
-	  }
+	for (int component = 0; component < numComponents; component++) {
+	  gradientWrappers[mode][component] =
+	    new GradientWrapper(updater.clone(), targetShape[mode], 1);
 	}
       }
     }
 
-    protected void putGradient(int mode, int row, int component, double gradient) {
-      gradientWrappers[mode][row][component].putGradient(0, 0, gradient);
-      gradientWrappers[mode][row][component].applyUpdate();
-      updateDecomposition(mode, row, component,
-	gradientWrappers[mode][row][component].gradients.getDouble(0));
+    protected void putGradients(int mode, int component, INDArray gradients) {
+      final GradientWrapper gw = gradientWrappers[mode][component];
+      gw.putGradients(0, gradients);
+      gw.applyUpdate();
+      updateDecomposition(mode, component, gw.gradients);
     }
 
-    protected void updateDecomposition(int mode, int row, int component,
-				       double gradient) {
-      double uOld = decomposition[mode].getScalar(row, component).getDouble(0);
-      double uNew = uOld - gradient;
-      uNew = Math.max(0, uNew); // Clip
-      decomposition[mode].putScalar(row, component, uNew);
+    protected void updateDecomposition(int mode, int component,
+				       INDArray gradients) {
+      final INDArray uOld = decomposition[mode].getColumn(component, true);
+      final INDArray uNew = Transforms.max(uOld.sub(gradients), 0, false); // Clip
+      decomposition[mode].putColumn(component, uNew);
     }
 
     protected void applyUpdate() {
-      // Skip, as updates are applied while updating the gradient in
-      // `putGradient`
+      // Skip, as updates are applied while updating the gradients in
+      // `putGradients`
     }
   }
 }
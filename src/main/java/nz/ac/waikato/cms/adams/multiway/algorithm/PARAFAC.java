@@ -12,20 +12,34 @@ import nz.ac.waikato.cms.adams.multiway.algorithm.stopping.ImprovementCriterion;
 import nz.ac.waikato.cms.adams.multiway.data.MathUtils;
 import nz.ac.waikato.cms.adams.multiway.data.tensor.Tensor;
 import nz.ac.waikato.cms.adams.multiway.exceptions.InvalidInputException;
+import nz.ac.waikato.cms.adams.multiway.exceptions.ModelBuildException;
 import nz.ac.waikato.cms.adams.multiway.exceptions.ModelNotBuiltException;
 import org.apache.commons.math3.linear.EigenDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.nd4j.linalg.api.buffer.DataBuffer;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.checkutil.CheckUtil;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.BooleanIndexing;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.indexing.conditions.Conditions;
 import org.nd4j.linalg.ops.transforms.Transforms;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Implementation of the PARAFAC algorithm according to
@@ -40,6 +54,34 @@ import java.util.Set;
  * <li>Repeat until convergence</li>
  * </ol>
  * <p>
+ * The input may be of any order N &gt;= 3, in which case one loading matrix is
+ * estimated per mode likewise (CP decomposition).
+ * <p>
+ * Multiple random starts can be run in parallel, see {@link
+ * PARAFAC#setNumThreads(int)} and {@link PARAFAC#setExecutor(ExecutorService)}.
+ * <p>
+ * Missing data (NaNs) is rejected by default. With {@link
+ * MissingValueHandling#EM_IMPUTATION}, missing cells are imputed with the
+ * current model after each iteration (expectation maximization), such that the
+ * loss is effectively computed on the observed cells only.
+ * <p>
+ * ALS convergence can be accelerated with a line search, see {@link
+ * Acceleration}.
+ * <p>
+ * For very large tensors, the least squares problems can be solved on a
+ * sample of the Khatri-Rao product rows, followed by a few exact polishing
+ * iterations, see {@link Solver}.
+ * <p>
+ * Each mode can be constrained to be non-negative, orthogonal or unimodal, see
+ * {@link PARAFAC#setConstraints(Constraint...)}. The constrained least
+ * squares problems are solved on the same normal equations as the
+ * unconstrained ones.
+ * <p>
+ * A build can be warm-started from the loading matrices of a previous model,
+ * see {@link Initialization#PROVIDED}. If the input has grown by new samples
+ * (appended to the first mode), the scores of the new samples are initialized
+ * as in {@link PARAFAC#filter(Tensor)}.
+ * <p>
  *
  * @author Steven Lang
  */
@@ -61,14 +103,11 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
   /** Cached matricized X for each axis */
   protected INDArray[] Xmatricized;
 
-  /** Array of shape I x F. Score matrix. */
-  protected INDArray A;
-
-  /** Array of shape J x F. First loading matrix. */
-  protected INDArray B;
-
-  /** Array of shape K x F. Second loading matrix. */
-  protected INDArray C;
+  /**
+   * Loading matrices of shape I_n x F, one per mode. The first one (A) is the
+   * score matrix.
+   */
+  protected INDArray[] factors;
 
   /** Cache loading matrices with the lowest loss across restarts */
   protected INDArray[] bestLoadingMatrices;
@@ -82,16 +121,128 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
   /** Best loss */
   protected double bestLoss;
 
+  /** Index of the start with the best loss */
+  protected int bestStart;
+
+  /** Number of threads to run the random starts on */
+  protected int numThreads;
+
+  /** Executor to run the random starts on, overrides numThreads if set */
+  protected transient ExecutorService executor;
+
   /** Component initialization method */
   protected Initialization initMethod;
 
+  /** Missing value handling */
+  protected MissingValueHandling missingValueHandling;
+
+  /**
+   * Subscripts of the missing cells, one array per mode. Null if the input is
+   * complete.
+   */
+  protected int[][] missingSubscripts;
+
+  /** Linear indices of the missing cells in the matricized input of each mode */
+  protected long[][] missingIndices;
+
+  /** Initial value of the missing cells (mean of the observed cells) */
+  protected double initialImputation;
+
+  /** Squared Frobenius norm of the observed input cells */
+  protected double inputSquaredNorm;
+
+  /** Squared norm of the currently imputed cells */
+  protected double imputedSquaredNorm;
+
+  /**
+   * Change of the inner product of input and model caused by the last
+   * imputation
+   */
+  protected double imputationCorrection;
+
+  /**
+   * MTTKRP of the last estimation step. Null if the loading matrices changed
+   * since then.
+   */
+  protected INDArray lastMttkrp;
+
+  /** Gram matrix of the Khatri-Rao product of the last estimation step */
+  protected INDArray lastGram;
+
+  /** ALS acceleration method */
+  protected Acceleration acceleration;
+
+  /** Loading matrices of the previous iteration (used for the line search) */
+  protected INDArray[] previousLoadingMatrices;
+
+  /** Line search step size exponent: step = iteration^(1/exponent) */
+  protected int lineSearchExponent;
+
+  /** Number of consecutive rejected line search steps */
+  protected int lineSearchFailures;
+
+  /** Least squares solver */
+  protected Solver solver;
+
+  /** Sampling of the Khatri-Rao product rows for the sketched solver */
+  protected SketchSampling sketchSampling;
+
+  /** Number of sampled Khatri-Rao product rows per least squares problem */
+  protected int sketchSize;
+
+  /** Number of exact iterations after the sketched iterations */
+  protected int numPolishingIterations;
+
+  /**
+   * Number of sketched iterations between two exact losses, which are passed
+   * to the improvement criterion
+   */
+  protected int exactLossInterval;
+
+  /**
+   * Number of sketched iterations of each start, i.e. the number of leading
+   * approximate losses in each loss history
+   */
+  protected List<Integer> numSketchedIterations;
+
+  /** Approximate loss of the last sketched iteration, NaN if not available */
+  protected double approximateLoss;
+
+  /** Number of sketched iterations of the last start */
+  protected int numSketched;
+
+  /** Constraint of each mode, modes without an entry are unconstrained */
+  protected Constraint[] constraints;
+
+  /** Initial loading matrices for {@link Initialization#PROVIDED} */
+  protected Map<String, Tensor> initialLoadingMatrices;
+
+  /** Number of power iterations for {@link Initialization#RANDOMIZED_SVD} */
+  protected int numPowerIterations;
+
+  /** Number of additional random directions of the randomized SVD */
+  protected static final int RANDOMIZED_SVD_OVERSAMPLING = 10;
+
   @Override
   protected void initialize() {
     super.initialize();
     this.lossHistory = new ArrayList<>();
     this.bestLoss = Double.MAX_VALUE;
     this.initMethod = Initialization.SVD;
+    this.missingValueHandling = MissingValueHandling.REJECT;
+    this.acceleration = Acceleration.NONE;
+    this.solver = Solver.EXACT;
+    this.sketchSampling = SketchSampling.LEVERAGE_SCORE;
+    this.sketchSize = 1000;
+    this.numPolishingIterations = 10;
+    this.exactLossInterval = 10;
+    this.numSketchedIterations = new ArrayList<>();
+    this.approximateLoss = Double.NaN;
+    this.constraints = new Constraint[0];
+    this.initialLoadingMatrices = ImmutableMap.of();
+    this.numPowerIterations = 2;
     this.numStarts = 1;
+    this.numThreads = 1;
     this.numComponents = 3;
     addStoppingCriterion(CriterionUtils.iterations(1000));
   }
@@ -100,133 +251,595 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
   /**
    * Input is assumed to be of the following shape: (I x J x K), where I is the
    * number of rows, J is the number of columns and K is the number of
-   * measurements/components/slices
+   * measurements/components/slices. Higher order inputs (I x J x K x L x ...)
+   * are decomposed likewise.
    *
    * @param x Input data
    */
   @Override
   protected String doBuild(Tensor x) {
-    // Array of shape I x J x K
+    // Array of shape I x J x K (x ...)
     INDArray X = x.getData();
-    if (numStarts > 1 && initMethod == Initialization.SVD) {
+    if (numStarts > 1 && (initMethod == Initialization.SVD
+      || initMethod == Initialization.PROVIDED)) {
       this.numStarts = 1;
       log.warn("Parameter <numStarts> has no effect if initialization is {}." +
 	  " <numStarts> has therefore been reset to 1.",
-	Initialization.SVD);
+	initMethod);
     }
 
     // Get dimensions
-    final int numRows = (int) X.size(0);
-    final int numColumns = (int) X.size(1);
-    final int numDimensions = (int) X.size(2);
-
+    final long[] shape = X.shape();
 
     // Build matricized cache
-    Xmatricized = new INDArray[]{
-      MathUtils.matricize(X, 0),
-      MathUtils.matricize(X, 1),
-      MathUtils.matricize(X, 2)
-    };
+    Xmatricized = new INDArray[shape.length];
+    for (int mode = 0; mode < shape.length; mode++) {
+      Xmatricized[mode] = MathUtils.matricize(X, mode);
+    }
 
+    // Locate missing cells
+    if (missingValueHandling == MissingValueHandling.EM_IMPUTATION) {
+      initMissingValues(X);
+    }
+    if (missingIndices == null) {
+      final double norm = X.norm2Number().doubleValue();
+      inputSquaredNorm = norm * norm;
+      imputedSquaredNorm = 0;
+      imputationCorrection = 0;
+    }
 
     // Repeat #numStarts times
-    for (int i = 0; i < numStarts; i++) {
-      initComponents(numRows, numColumns, numDimensions, i);
+    if (isParallel()) {
+      runStartsParallel(shape);
+    }
+    else {
+      for (int i = 0; i < numStarts; i++) {
+	// Collect loss for this run
+	lossHistory.add(runStart(this, shape, i));
+	numSketchedIterations.add(numSketched);
 
-      // Collect loss for this run
-      List<Double> losses = new ArrayList<>();
+	// Update loading matrices if this run was better
+	updateBestStart(this, i);
 
-      while (!stoppingCriteriaMatch()) {
-	// Run the nextIteration estimation iteration
-	nextIteration();
+	resetStoppingCriteria();
+      }
+    }
 
-	// Update algorithm state
-	update();
+    // Continue with the loading matrices of the best start
+    lastMttkrp = null;
+    if (bestLoadingMatrices != null) {
+      factors = bestLoadingMatrices;
+    }
+    postprocess();
 
-	// Keep track of loss in this run
-	losses.add(loss);
-      }
-      lossHistory.add(losses);
+    return null;
+  }
 
-      // Update loading matrices if this run was better
-      if (loss < bestLoss) {
-	bestLoss = loss;
-	bestLoadingMatrices = new INDArray[]{A, B, C};
+  /**
+   * Normalize, sort and sign the components of the loading matrices, while
+   * keeping the model and the constraints of each mode intact:
+   * <ul>
+   * <li>All variance is put into the first mode that is not {@link
+   * Constraint#ORTHOGONAL}, the columns of all other modes are normalized.</li>
+   * <li>The components are sorted by the variance they describe.</li>
+   * <li>Columns are flipped such that their largest absolute entry is
+   * positive. Only modes which are {@link Constraint#NONE} or {@link
+   * Constraint#ORTHOGONAL} are flipped, and the flips are compensated in one
+   * of them.</li>
+   * </ul>
+   */
+  protected void postprocess() {
+    final int numModes = factors.length;
+    int scaleMode = -1;
+    for (int mode = 0; mode < numModes && scaleMode < 0; mode++) {
+      if (getConstraint(mode) != Constraint.ORTHOGONAL) {
+	scaleMode = mode;
       }
-
-      resetStoppingCriteria();
     }
 
-    /*
-     * Postprocess: Put all variance in first mode according to
-     * https://github.com/andrewssobral/nway/blob/a6dc5b3970ef395c03fc7e6dc1ea2fc105185b86/parafac.m#L941
-     */
-    for (INDArray loading : new INDArray[] {B, C}) {
-      for (int f = 0; f < numComponents; f++) {
-        double norm = loading.getColumn(f).norm2Number().doubleValue();
-        INDArray normedA = A.getColumn(f).mul(norm);
-        A.putColumn(f, normedA);
-        INDArray normedColumn = loading.getColumn(f).div(norm);
-        loading.putColumn(f, normedColumn);
+    // Without a scale mode, all columns already have unit norm
+    if (scaleMode >= 0) {
+      /*
+       * Postprocess: Put all variance in one mode according to
+       * https://github.com/andrewssobral/nway/blob/a6dc5b3970ef395c03fc7e6dc1ea2fc105185b86/parafac.m#L941
+       */
+      final INDArray S = factors[scaleMode];
+      for (int mode = 0; mode < numModes; mode++) {
+	if (mode == scaleMode || getConstraint(mode) == Constraint.ORTHOGONAL) {
+	  continue;
+	}
+	final INDArray loading = factors[mode];
+	for (int f = 0; f < numComponents; f++) {
+	  double norm = loading.getColumn(f).norm2Number().doubleValue();
+	  if (norm == 0) {
+	    continue;
+	  }
+	  S.putColumn(f, S.getColumn(f).mul(norm));
+	  loading.putColumn(f, loading.getColumn(f).div(norm));
+	}
       }
-    }
 
-    /*
-     * Sort components in order after variance described (as in PCA)
-     * See also: https://github.com/andrewssobral/nway/blob/a6dc5b3970ef395c03fc7e6dc1ea2fc105185b86/parafac.m#L1193
-     */
-    final INDArray diag = Nd4j.diag(A.transpose().mmul(A));
-    final INDArray orderArray = Nd4j.sortWithIndices(diag, 0, false)[0];
-    int[] order = new int[(int) orderArray.size(0)];
-    for (int i = 0; i < orderArray.size(0); i++) {
-      order[i] = orderArray.getInt(i);
-    }
+      /*
+       * Sort components in order after variance described (as in PCA)
+       * See also: https://github.com/andrewssobral/nway/blob/a6dc5b3970ef395c03fc7e6dc1ea2fc105185b86/parafac.m#L1193
+       */
+      final INDArray diag = Nd4j.diag(S.transpose().mmul(S));
+      final INDArray orderArray = Nd4j.sortWithIndices(diag, 0, false)[0];
+      int[] order = new int[(int) orderArray.size(0)];
+      for (int i = 0; i < orderArray.size(0); i++) {
+	order[i] = orderArray.getInt(i);
+      }
 
-    A.assign(Nd4j.pullRows(A, 0, order));
-    B.assign(Nd4j.pullRows(B, 0, order));
-    C.assign(Nd4j.pullRows(C, 0, order));
+      for (INDArray loading : factors) {
+	loading.assign(Nd4j.pullRows(loading, 0, order));
+      }
+    }
 
     /*
      * Apply sign convention:
      * See also: https://github.com/andrewssobral/nway/blob/a6dc5b3970ef395c03fc7e6dc1ea2fc105185b86/parafac.m#L1231
+     * The flips are compensated in the scale mode if it can be flipped, else
+     * in the first mode that can be flipped.
      */
+    int compensationMode = -1;
+    if (scaleMode >= 0 && isFlippable(scaleMode)) {
+      compensationMode = scaleMode;
+    }
+    for (int mode = 0; mode < numModes && compensationMode < 0; mode++) {
+      if (isFlippable(mode)) {
+	compensationMode = mode;
+      }
+    }
+    if (compensationMode < 0) {
+      return;
+    }
+
     INDArray signs = Nd4j.ones(1, numComponents);
-    for (INDArray loading : new INDArray[]{C, B}) {
+    for (int mode = numModes - 1; mode >= 0; mode--) {
+      if (mode == compensationMode || !isFlippable(mode)) {
+	continue;
+      }
+      final INDArray loading = factors[mode];
       INDArray signs2 = Nd4j.ones(1, numComponents);
       for (int f = 0; f < numComponents; f++) {
-        final INDArray colF = loading.getColumn(f);
-        final INDArray colfFabs = Transforms.abs(colF);
-        final int argmax = colfFabs.argMax(0).getInt(0);
-        signs.putScalar(f, signs.getDouble(f) * Math.signum(loading.getDouble(argmax, f)));
-        signs2.putScalar(f, Math.signum(loading.getDouble(argmax, f)));
+	final INDArray colF = loading.getColumn(f);
+	final INDArray colfFabs = Transforms.abs(colF);
+	final int argmax = colfFabs.argMax(0).getInt(0);
+	final double sign = loading.getDouble(argmax, f) < 0 ? -1 : 1;
+	signs.putScalar(f, signs.getDouble(f) * sign);
+	signs2.putScalar(f, sign);
       }
       loading.assign(loading.mmul(Nd4j.diag(signs2)));
     }
-    A.assign(A.mmul(Nd4j.diag(signs)));
+    final INDArray compensation = factors[compensationMode];
+    compensation.assign(compensation.mmul(Nd4j.diag(signs)));
+  }
 
-    return null;
+  /**
+   * Check whether the columns of a mode may change their sign without
+   * violating the constraint of the mode.
+   *
+   * @param mode Mode
+   * @return True if the columns may be flipped
+   */
+  protected boolean isFlippable(int mode) {
+    final Constraint constraint = getConstraint(mode);
+    return constraint == Constraint.NONE || constraint == Constraint.ORTHOGONAL;
+  }
+
+  /**
+   * Run a single start: initialize the components of the given instance and
+   * iterate until its stopping criteria match.
+   *
+   * @param start Instance which holds the state of this start
+   * @param shape Input shape
+   * @param seed  Seed
+   * @return Loss history of this start
+   */
+  protected List<Double> runStart(PARAFAC start, long[] shape, int seed) {
+    // Discard imputations of previous starts
+    if (start.missingIndices != null) {
+      start.resetMissingValues();
+    }
+
+    start.initComponents(shape, seed);
+    start.lineSearchExponent = 2;
+    start.lineSearchFailures = 0;
+    final boolean sketched = solver == Solver.SKETCHED;
+    final Random rng = new Random(seed);
+    final boolean lineSearch = acceleration == Acceleration.LINE_SEARCH && !sketched;
+
+    // Collect loss for this run
+    List<Double> losses = new ArrayList<>();
+
+    int iteration = 0;
+    while (!start.stoppingCriteriaMatch() && !isForceStop()) {
+      iteration++;
+
+      // Remember the current iterate for the line search
+      if (lineSearch) {
+	start.previousLoadingMatrices = new INDArray[start.factors.length];
+	for (int mode = 0; mode < start.factors.length; mode++) {
+	  start.previousLoadingMatrices[mode] = start.factors[mode].dup();
+	}
+      }
+
+      // Run the nextIteration estimation iteration
+      if (sketched) {
+	start.nextSketchedIteration(rng);
+
+	// Periodically replace the sample estimate by the exact loss, such
+	// that the improvement criterion can end the sketched phase
+	if (iteration % exactLossInterval == 0) {
+	  start.approximateLoss = Double.NaN;
+	}
+      }
+      else {
+	start.nextIteration();
+      }
+
+      // Update algorithm state
+      start.update();
+
+      // Keep track of loss in this run
+      losses.add(start.loss);
+
+      // Extrapolate along the ALS update and record accepted steps
+      if (lineSearch && start.lineSearch(iteration)) {
+	losses.add(start.loss);
+      }
+    }
+
+    // Polish the sketched solution with exact iterations, the iteration and
+    // improvement criteria restart while the time budget keeps running
+    start.numSketched = 0;
+    if (sketched) {
+      start.numSketched = losses.size();
+      for (CriterionType type : new CriterionType[]{CriterionType.ITERATION, CriterionType.IMPROVEMENT}) {
+	final Criterion criterion = start.stoppingCriteria.get(type);
+	if (criterion != null) {
+	  criterion.reset();
+	}
+      }
+      for (int i = 0; i < numPolishingIterations
+	&& !start.stoppingCriteriaMatch() && !isForceStop(); i++) {
+	start.nextIteration();
+	start.update();
+	losses.add(start.loss);
+      }
+    }
+    return losses;
+  }
+
+  /**
+   * Execute the next iteration with sketched least squares problems: each mode
+   * is estimated from a sample of {@link PARAFAC#sketchSize} rows of the
+   * Khatri-Rao product of the other modes and the corresponding columns of the
+   * matricized input. Modes whose matricized input has no more columns than
+   * the sketch size are estimated exactly.
+   * <p>
+   * The loss of the last mode's sample is kept as an (unbiased) estimate of
+   * the loss, see {@link PARAFAC#calculateLoss()}.
+   *
+   * @param rng Random number generator for the sampling
+   */
+  protected void nextSketchedIteration(Random rng) {
+    final long[] shape = new long[factors.length];
+    for (int mode = 0; mode < factors.length; mode++) {
+      shape[mode] = factors[mode].size(0);
+    }
+
+    approximateLoss = Double.NaN;
+    for (int mode = 0; mode < factors.length; mode++) {
+      final long numColumns = Xmatricized[mode].size(1);
+      if (numColumns <= sketchSize) {
+	estimate(mode, factors[mode], Xmatricized[mode], otherFactors(factors, mode));
+	approximateLoss = Double.NaN;
+      }
+      else {
+	estimateSketched(mode, shape, rng);
+      }
+    }
+
+    if (missingIndices != null) {
+      imputeMissingValues();
+    }
+  }
+
+  /**
+   * Estimate a mode from a weighted sample of the Khatri-Rao product rows.
+   * With weights w_s = 1/sqrt(numSamples * p_s), the sampled least squares
+   * problem approximates the full problem:
+   * <p>
+   * U = (X_s*W) * (W*Z_s) * ((W*Z_s)^T * (W*Z_s))^+
+   *
+   * @param mode  Mode to estimate
+   * @param shape Input shape
+   * @param rng   Random number generator for the sampling
+   */
+  protected void estimateSketched(int mode, long[] shape, Random rng) {
+    final long[] strides = matricizedStrides(shape, mode);
+    final double[][][] factorValues = new double[factors.length][][];
+    final double[][] cumulativeProbs = new double[factors.length][];
+    for (int m = 0; m < factors.length; m++) {
+      if (m != mode) {
+	factorValues[m] = MathUtils.to2dDoubleArray(factors[m]);
+	cumulativeProbs[m] = cumulativeSamplingProbabilities(factors[m]);
+      }
+    }
+
+    // Sample columns of the matricized input and rows of the Khatri-Rao product
+    final int[] columns = new int[sketchSize];
+    final double[] weights = new double[sketchSize];
+    final double[][] sampledRows = new double[sketchSize][numComponents];
+    for (int s = 0; s < sketchSize; s++) {
+      long column = 0;
+      double prob = 1;
+      final double[] row = sampledRows[s];
+      Arrays.fill(row, 1);
+      for (int m = 0; m < factors.length; m++) {
+	if (m == mode) {
+	  continue;
+	}
+	final int idx = sampleIndex(cumulativeProbs[m], rng);
+	prob *= cumulativeProbs[m][idx] - (idx > 0 ? cumulativeProbs[m][idx - 1] : 0);
+	column += idx * strides[m];
+	for (int f = 0; f < numComponents; f++) {
+	  row[f] *= factorValues[m][idx][f];
+	}
+      }
+      columns[s] = (int) column;
+      weights[s] = 1.0 / Math.sqrt(sketchSize * prob);
+    }
+
+    // Weighted sample
+    final INDArray w = Nd4j.create(weights);
+    final INDArray Zs = Nd4j.create(sampledRows).muliColumnVector(w.reshape(sketchSize, 1));
+    final INDArray Xs = Nd4j.pullRows(Xmatricized[mode], 0, columns).muliRowVector(w.reshape(1, sketchSize));
+
+    // Solve sampled normal equations
+    final INDArray U = factors[mode];
+    solve(U, Xs.mmul(Zs), gram(Zs), getConstraint(mode));
+    lastMttkrp = null;
+
+    // Estimate loss on the sample of the last mode
+    if (mode == factors.length - 1) {
+      approximateLoss = Xs.squaredDistance(U.mmul(MathUtils.t(Zs)));
+    }
+  }
+
+  /**
+   * Compute the cumulative sampling probabilities of the rows of a loading
+   * matrix, see {@link SketchSampling}.
+   *
+   * @param U Loading matrix
+   * @return Cumulative sampling probabilities
+   */
+  protected double[] cumulativeSamplingProbabilities(INDArray U) {
+    final int numRows = (int) U.size(0);
+    final double[] probs = new double[numRows];
+    switch (sketchSampling) {
+      case UNIFORM:
+	Arrays.fill(probs, 1.0 / numRows);
+	break;
+      case LEVERAGE_SCORE:
+	// Leverage scores: diag(U * (U^T*U)^+ * U^T)
+	final INDArray scores = U.mmul(MathUtils.pseudoInvert(gram(U), false)).muli(U).sum(1);
+	final double total = scores.sumNumber().doubleValue();
+	for (int i = 0; i < numRows; i++) {
+	  probs[i] = scores.getDouble(i) / total;
+	}
+	break;
+      default:
+	throw new InvalidInputException("Sketch sampling " + sketchSampling +
+	  " is not yet implemented.");
+    }
+
+    for (int i = 1; i < numRows; i++) {
+      probs[i] += probs[i - 1];
+    }
+    return probs;
+  }
+
+  /**
+   * Sample an index from cumulative probabilities.
+   *
+   * @param cumulativeProbs Cumulative probabilities
+   * @param rng             Random number generator
+   * @return Sampled index
+   */
+  protected static int sampleIndex(double[] cumulativeProbs, Random rng) {
+    final double u = rng.nextDouble() * cumulativeProbs[cumulativeProbs.length - 1];
+    int idx = Arrays.binarySearch(cumulativeProbs, u);
+    if (idx < 0) {
+      idx = -idx - 1;
+    }
+    return Math.min(idx, cumulativeProbs.length - 1);
+  }
+
+  /**
+   * Line search as proposed by Bro (1998): extrapolate the loading matrices
+   * along the direction of the last ALS update
+   * <p>
+   * A_new = A_prev + s * (A - A_prev), s = iteration^(1/exponent)
+   * <p>
+   * and likewise for all other unconstrained loading matrices. The step is
+   * accepted if it decreases the loss. The extrapolated iterate is evaluated
+   * without reconstructing the model, on the observed cells only (see {@link
+   * PARAFAC#calculateObservedLoss()}). After four consecutive rejected steps
+   * the exponent is increased, which shortens all further steps.
+   *
+   * @param iteration Current iteration (starting at 1)
+   * @return True if the extrapolated step was accepted
+   */
+  protected boolean lineSearch(int iteration) {
+    final double step = Math.pow(iteration, 1.0 / lineSearchExponent);
+    final INDArray[] current = factors;
+    final INDArray[] extrapolated = new INDArray[current.length];
+    for (int i = 0; i < current.length; i++) {
+      // Extrapolation could violate the constraint
+      if (getConstraint(i) != Constraint.NONE) {
+	extrapolated[i] = current[i];
+	continue;
+      }
+      final INDArray prev = previousLoadingMatrices[i];
+      extrapolated[i] = current[i].sub(prev).muli(step).addi(prev);
+    }
+
+    // Evaluate the extrapolated iterate
+    factors = extrapolated;
+    final double extrapolatedLoss = calculateObservedLoss();
+
+    if (extrapolatedLoss < loss) {
+      // The cached MTTKRP of the ALS iterate does not apply anymore
+      lastMttkrp = null;
+      loss = extrapolatedLoss;
+      lineSearchFailures = 0;
+      if (missingIndices != null) {
+	imputeMissingValues();
+      }
+      return true;
+    }
+
+    // Reject and restore the ALS iterate, its cached MTTKRP still applies
+    factors = current;
+    lineSearchFailures++;
+    if (lineSearchFailures == 4) {
+      lineSearchExponent++;
+      lineSearchFailures = 0;
+    }
+    return false;
+  }
+
+  /**
+   * Run all starts concurrently, each on an isolated copy of this instance
+   * (see {@link PARAFAC#createStart()}).
+   *
+   * @param shape Input shape
+   */
+  protected void runStartsParallel(long[] shape) {
+    final ExecutorService pool = executor != null ?
+      executor : Executors.newFixedThreadPool(Math.min(numThreads, numStarts));
+    try {
+      List<Future<List<Double>>> futures = new ArrayList<>();
+      List<PARAFAC> starts = new ArrayList<>();
+      for (int i = 0; i < numStarts; i++) {
+	final int seed = i;
+	final PARAFAC start = createStart();
+	starts.add(start);
+	futures.add(pool.submit(() -> {
+	  List<Double> losses = runStart(start, shape, seed);
+	  updateBestStart(start, seed);
+	  return losses;
+	}));
+      }
+
+      // Collect loss histories in order of the starts
+      for (int i = 0; i < numStarts; i++) {
+	lossHistory.add(futures.get(i).get());
+	numSketchedIterations.add(starts.get(i).numSketched);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ModelBuildException("Interrupted while waiting for the random starts.");
+    }
+    catch (ExecutionException e) {
+      throw new ModelBuildException("Random start failed: " + e.getCause());
+    }
+    finally {
+      if (executor == null) {
+	pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Create an isolated copy of this instance for a single start. The copy
+   * shares the configuration and the read-only matricized input but owns its
+   * loading matrices and copies of the stopping criteria.
+   *
+   * @return Instance for a single start
+   */
+  protected PARAFAC createStart() {
+    final PARAFAC start;
+    try {
+      start = (PARAFAC) clone();
+    }
+    catch (CloneNotSupportedException e) {
+      throw new ModelBuildException("Could not create random start: " + e.getMessage());
+    }
+    // Imputation writes into the matricized input
+    if (missingIndices != null) {
+      start.Xmatricized = new INDArray[Xmatricized.length];
+      for (int i = 0; i < Xmatricized.length; i++) {
+	start.Xmatricized[i] = Xmatricized[i].dup('c');
+      }
+    }
+    start.stoppingCriteria = new HashMap<>();
+    for (Criterion c : stoppingCriteria.values()) {
+      if (c.getType() != CriterionType.KILL) {
+	start.stoppingCriteria.put(c.getType(), c.copy());
+      }
+    }
+    start.factors = null;
+    start.lossHistory = new ArrayList<>();
+    start.numSketchedIterations = new ArrayList<>();
+    start.bestLoadingMatrices = null;
+    start.bestLoss = Double.MAX_VALUE;
+    start.executor = null;
+    return start;
+  }
+
+  /**
+   * Keep the loading matrices of the given start if its loss is the lowest so
+   * far. Ties are resolved in favor of the lower start index, such that the
+   * result does not depend on the order in which parallel starts finish.
+   *
+   * @param start Instance which holds the state of the start
+   * @param seed  Index of the start
+   */
+  protected synchronized void updateBestStart(PARAFAC start, int seed) {
+    if (start.loss < bestLoss || (start.loss == bestLoss && seed < bestStart)) {
+      bestLoss = start.loss;
+      bestStart = seed;
+      bestLoadingMatrices = start.factors;
+    }
+  }
+
+  /**
+   * Check if the starts are run in parallel.
+   *
+   * @return True if more than one start is run on an executor
+   */
+  protected boolean isParallel() {
+    return numStarts > 1 && (numThreads > 1 || executor != null);
   }
 
   /**
    * Initialize the components based on the chosen initialization method,
    *
-   * @param numRows       Number of rows
-   * @param numColumns    Number of columns
-   * @param numDimensions Number of dimensions
-   * @param seed          Seed
+   * @param shape Input shape
+   * @param seed  Seed
    */
-  protected void initComponents(int numRows, int numColumns, int numDimensions, int seed) {
+  protected void initComponents(long[] shape, int seed) {
     // Initialize components
     switch (initMethod) {
       case RANDOM:
-	initComponentsRandom(numRows, numColumns, numDimensions, seed);
+	initComponentsRandom(shape, seed);
 	break;
       case RANDOM_ORTHOGONALIZED:
-	initComponentsRandomOrthogonalized(numRows, numColumns, numDimensions, seed);
+	initComponentsRandomOrthogonalized(shape, seed);
 	break;
       case SVD:
 	initComponentsSVD();
 	break;
+      case RANDOMIZED_SVD:
+	initComponentsRandomizedSVD(seed);
+	break;
+      case PROVIDED:
+	initComponentsProvided(shape);
+	break;
       default:
 	throw new InvalidInputException("Initialization method " +
           initMethod + " is not yet implemented.");
@@ -245,56 +858,276 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
         "greater than 0.";
     }
 
+    if (input.order() < 3) {
+      return "Input must be a tensor of order three or higher but was of " +
+	"order " + input.order() + ".";
+    }
+
+    // Check constraints
+    if (constraints.length > input.order()) {
+      return "Constraints were given for " + constraints.length + " modes " +
+	"but the input is of order " + input.order() + ".";
+    }
+    for (int mode = 0; mode < constraints.length; mode++) {
+      if (getConstraint(mode) == Constraint.ORTHOGONAL && input.size(mode) < numComponents) {
+	return "Mode " + mode + " is constrained to be orthogonal but its " +
+	  "size is smaller than the number of components.";
+      }
+    }
+
+    // Check provided loading matrices
+    if (initMethod == Initialization.PROVIDED) {
+      final String providedCheck = checkInitialLoadingMatrices(input);
+      if (providedCheck != null) {
+	return providedCheck;
+      }
+    }
+
 
     // Check for NaNs
-    for (int i = 0; i < input.size(0); i++) {
-      for (int j = 0; j < input.size(1); j++) {
-	for (int k = 0; k < input.size(2); k++) {
-	  if (Double.isNaN(input.getDouble(i, j, k))) {
-	    return "Input has missing data " +
-	      "(NaNs found). PARAFAC currently does not support missing data.";
-	  }
-	}
+    final INDArray data = input.getData();
+    if (missingValueHandling == MissingValueHandling.REJECT
+      && BooleanIndexing.or(data, Conditions.isNan())) {
+      return "Input has missing data (NaNs found). Set the missing value " +
+	"handling to " + MissingValueHandling.EM_IMPUTATION + " to support " +
+	"missing data.";
+    }
+    if (BooleanIndexing.and(data, Conditions.isNan())) {
+      return "Input does not contain any observed values.";
+    }
+    return null;
+  }
+
+  /**
+   * Check that the provided initial loading matrices match the input. The
+   * first mode may have fewer rows than the input (new samples).
+   *
+   * @param input Input tensor
+   * @return Error message, null if the loading matrices are valid
+   */
+  protected String checkInitialLoadingMatrices(Tensor input) {
+    for (int mode = 0; mode < input.order(); mode++) {
+      final String key = String.valueOf((char) ('A' + mode));
+      final Tensor loading = initialLoadingMatrices.get(key);
+      if (loading == null) {
+	return "Initialization is " + Initialization.PROVIDED + " but no " +
+	  "initial loading matrix " + key + " was provided.";
+      }
+      if (loading.order() != 2 || loading.size(1) != numComponents) {
+	return "Initial loading matrix " + key + " must have " +
+	  numComponents + " columns.";
+      }
+      if (mode == 0 ? loading.size(0) > input.size(0) : loading.size(0) != input.size(mode)) {
+	return "Initial loading matrix " + key + " has " + loading.size(0) +
+	  " rows but mode " + mode + " of the input has size " +
+	  input.size(mode) + ".";
       }
     }
     return null;
   }
 
   /**
-   * Initialize the component matrices with a random N(0,1) distribution
+   * Locate the missing cells of the input and compute their linear indices in
+   * each matricized input. The matricized inputs are made contiguous, such that
+   * imputed values can be written directly into their buffers.
+   *
+   * @param X Input tensor
+   */
+  protected void initMissingValues(INDArray X) {
+    final long[] shape = X.shape();
+    final int numMissing = X.scan(Conditions.isNan()).intValue();
+    if (numMissing == 0) {
+      missingSubscripts = null;
+      missingIndices = null;
+      return;
+    }
+
+    // Sum up observed cells
+    final INDArray observed = X.dup();
+    BooleanIndexing.replaceWhere(observed, 0.0, Conditions.isNan());
+    initialImputation = observed.sumNumber().doubleValue() / (X.length() - numMissing);
+    final double observedNorm = observed.norm2Number().doubleValue();
+    inputSquaredNorm = observedNorm * observedNorm;
+
+    // Collect subscripts of the missing cells
+    final INDArray[] subscripts = Nd4j.where(X.cond(Conditions.isNan()), null, null);
+    missingSubscripts = new int[shape.length][];
+    for (int mode = 0; mode < shape.length; mode++) {
+      missingSubscripts[mode] = subscripts[mode].toIntVector();
+    }
+
+    // Linear indices in the matricized inputs
+    missingIndices = new long[shape.length][numMissing];
+    for (int mode = 0; mode < shape.length; mode++) {
+      // Own contiguous copy, never write into the input's buffer
+      Xmatricized[mode] = Xmatricized[mode].dup('c');
+      final long[] strides = matricizedStrides(shape, mode);
+      for (int c = 0; c < numMissing; c++) {
+	long linearIdx = 0;
+	for (int m = 0; m < shape.length; m++) {
+	  linearIdx += missingSubscripts[m][c] * strides[m];
+	}
+	missingIndices[mode][c] = linearIdx;
+      }
+    }
+  }
+
+  /**
+   * Get the strides of each mode of the input in the row-major matricized
+   * input of the given mode (see {@link MathUtils#matricize(INDArray, int)}:
+   * the given mode becomes the rows, the remaining modes are ordered such that
+   * the lowest mode runs fastest).
+   *
+   * @param shape Input shape
+   * @param mode  Matricization mode
+   * @return Stride of each mode
+   */
+  protected static long[] matricizedStrides(long[] shape, int mode) {
+    final long[] strides = new long[shape.length];
+    long stride = 1;
+    for (int m = 0; m < shape.length; m++) {
+      if (m == mode) {
+	continue;
+      }
+      strides[m] = stride;
+      stride *= shape[m];
+    }
+    strides[mode] = stride;
+    return strides;
+  }
+
+  /**
+   * Set all missing cells in the matricized inputs to their initial value.
+   */
+  protected void resetMissingValues() {
+    for (int mode = 0; mode < missingIndices.length; mode++) {
+      final DataBuffer buffer = Xmatricized[mode].data();
+      for (long idx : missingIndices[mode]) {
+	buffer.put(idx, initialImputation);
+      }
+    }
+    imputedSquaredNorm = missingIndices[0].length * initialImputation * initialImputation;
+    imputationCorrection = 0;
+  }
+
+  /**
+   * Replace the missing cells in the matricized inputs with the current model
+   * (E-step). Only the missing cells are evaluated, the model is never
+   * reconstructed densely. Also keeps track of the quantities required by
+   * {@link PARAFAC#calculateLoss()} to account for the changed input.
+   */
+  protected void imputeMissingValues() {
+    final int numMissing = missingSubscripts[0].length;
+    final double[] imputed = evaluateMissingCells();
+
+    // <X_new, M> - <X_old, M> and ||X_new||^2 on the missing cells
+    final DataBuffer current = Xmatricized[0].data();
+    imputationCorrection = 0;
+    imputedSquaredNorm = 0;
+    for (int c = 0; c < numMissing; c++) {
+      final double old = current.getDouble(missingIndices[0][c]);
+      imputationCorrection += (imputed[c] - old) * imputed[c];
+      imputedSquaredNorm += imputed[c] * imputed[c];
+    }
+
+    for (int mode = 0; mode < missingIndices.length; mode++) {
+      final DataBuffer buffer = Xmatricized[mode].data();
+      for (int c = 0; c < numMissing; c++) {
+	buffer.put(missingIndices[mode][c], imputed[c]);
+      }
+    }
+  }
+
+  /**
+   * Evaluate the model of the current loading matrices at the missing cells.
    *
-   * @param numRows       Number of rows (first mode)
-   * @param numColumns    Number of columns (second mode)
-   * @param numDimensions Number of dimensions (third mode)
-   * @param seed          Seed for the RNG
+   * @return Model values of the missing cells
    */
-  protected void initComponentsRandom(int numRows, int numColumns, int numDimensions, int seed) {
-    A = Nd4j.create(numRows, numComponents);
-    B = Nd4j.randn(numColumns, numComponents, seed);
-    C = Nd4j.randn(numDimensions, numComponents, seed + 1000);
+  protected double[] evaluateMissingCells() {
+    final double[][][] factors = new double[this.factors.length][][];
+    for (int mode = 0; mode < factors.length; mode++) {
+      factors[mode] = MathUtils.to2dDoubleArray(this.factors[mode]);
+    }
+    final int numMissing = missingSubscripts[0].length;
+    final double[] values = new double[numMissing];
+    for (int c = 0; c < numMissing; c++) {
+      double value = 0;
+      for (int f = 0; f < numComponents; f++) {
+	double prod = 1;
+	for (int mode = 0; mode < factors.length; mode++) {
+	  prod *= factors[mode][missingSubscripts[mode][c]][f];
+	}
+	value += prod;
+      }
+      values[c] = value;
+    }
+    return values;
+  }
+
+  /**
+   * Initialize the component matrices with a random N(0,1) distribution. The
+   * first mode is estimated in the first iteration and therefore starts at
+   * zero.
+   *
+   * @param shape Input shape
+   * @param seed  Seed for the RNG
+   */
+  protected void initComponentsRandom(long[] shape, int seed) {
+    factors = new INDArray[shape.length];
+    factors[0] = Nd4j.create((int) shape[0], numComponents);
+    for (int mode = 1; mode < shape.length; mode++) {
+      factors[mode] = Nd4j.randn((int) shape[mode], numComponents, seed + 1000 * (mode - 1));
+    }
   }
 
   /**
    * Initialize the component matrices with a random orthogonalized matrices
    *
-   * @param numRows       Number of rows (first mode)
-   * @param numColumns    Number of columns (second mode)
-   * @param numDimensions Number of dimensions (third mode)
-   * @param seed          Seed for the RNG
+   * @param shape Input shape
+   * @param seed  Seed for the RNG
+   */
+  protected void initComponentsRandomOrthogonalized(long[] shape, int seed) {
+    factors = new INDArray[shape.length];
+    factors[0] = Nd4j.create((int) shape[0], numComponents);
+    for (int mode = 1; mode < shape.length; mode++) {
+      factors[mode] = MathUtils.orth(Nd4j.randn((int) shape[mode], numComponents, seed + 1000 * (mode - 1)), false);
+    }
+  }
+
+  /**
+   * Initialize the component matrices with copies of the provided loading
+   * matrices. Rows of the first mode that exceed the provided scores (new
+   * samples) are estimated from the other provided loading matrices, as in
+   * {@link PARAFAC#filter(Tensor)}.
+   *
+   * @param shape Input shape
    */
-  protected void initComponentsRandomOrthogonalized(int numRows, int numColumns, int numDimensions, int seed) {
-    A = Nd4j.create(numRows, numComponents);
-    B = MathUtils.orth(Nd4j.randn(numColumns, numComponents, seed), false);
-    C = MathUtils.orth(Nd4j.randn(numDimensions, numComponents, seed + 1000), false);
+  protected void initComponentsProvided(long[] shape) {
+    factors = new INDArray[shape.length];
+    for (int mode = 0; mode < shape.length; mode++) {
+      final String key = String.valueOf((char) ('A' + mode));
+      factors[mode] = initialLoadingMatrices.get(key).getData().dup('c');
+    }
+
+    // Estimate the scores of the new samples
+    final int numProvided = (int) factors[0].size(0);
+    if (numProvided < shape[0]) {
+      final INDArray Anew = Nd4j.create((int) shape[0] - numProvided, numComponents);
+      final INDArray Xnew = Xmatricized[0].get(NDArrayIndex.interval(numProvided, shape[0]), NDArrayIndex.all());
+      estimate(0, Anew, Xnew, otherFactors(factors, 0));
+      factors[0] = Nd4j.vstack(factors[0], Anew);
+      lastMttkrp = null;
+    }
   }
 
   /**
    * Initialize all components from eigenvectors using SVD.
    */
   protected void initComponentsSVD() {
-    A = initComponentSVDop(0);
-    B = initComponentSVDop(1);
-    C = initComponentSVDop(2);
+    factors = new INDArray[Xmatricized.length];
+    for (int mode = 0; mode < factors.length; mode++) {
+      factors[mode] = initComponentSVDop(mode);
+    }
   }
 
   /**
@@ -328,61 +1161,295 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
         break;
       }
     }
-    final INDArray argmax = Nd4j.argMax(Transforms.abs(selectedEigVecs), 0);
+    return applySignConvention(selectedEigVecs);
+  }
+
+  /**
+   * Initialize all components from the leading left singular vectors of the
+   * matricized input, computed with a randomized SVD. In contrast to {@link
+   * PARAFAC#initComponentsSVD()}, no Gram matrix of a matricized input is
+   * formed, such that the costs scale linearly with the size of each mode.
+   *
+   * @param seed Seed for the random directions
+   */
+  protected void initComponentsRandomizedSVD(int seed) {
+    factors = new INDArray[Xmatricized.length];
+    for (int mode = 0; mode < factors.length; mode++) {
+      final INDArray U = MathUtils.randomizedSvd(Xmatricized[mode],
+	numComponents, RANDOMIZED_SVD_OVERSAMPLING, numPowerIterations,
+	seed + 1000 * mode).get("U");
+
+      // Modes smaller than the number of components keep zero columns
+      final INDArray singularVectors = Nd4j.create(Xmatricized[mode].size(0), numComponents);
+      singularVectors.put(new INDArrayIndex[]{NDArrayIndex.all(),
+	NDArrayIndex.interval(0, U.size(1))}, U);
+      factors[mode] = applySignConvention(singularVectors);
+    }
+  }
+
+  /**
+   * Flip the signs of the columns such that the largest absolute entry of each
+   * column is positive.
+   *
+   * @param vectors Column vectors
+   * @return Column vectors with the sign convention applied
+   */
+  protected INDArray applySignConvention(INDArray vectors) {
+    final INDArray argmax = Nd4j.argMax(Transforms.abs(vectors), 0);
     INDArray vals = Nd4j.create(numComponents);
     for (int i = 0; i < numComponents; i++) {
       final int j = argmax.getInt(i);
-      final double val = selectedEigVecs.getDouble(j, i);
+      final double val = vectors.getDouble(j, i);
       vals.putScalar(i, val);
     }
-    final INDArray sign = Transforms.sign(vals);
-    return selectedEigVecs.mulRowVector(sign);
+    final INDArray sign = Transforms.sign(vals);
+    return vectors.mulRowVector(sign);
+  }
+
+  /**
+   * Execute the next iteration:
+   * <p>
+   * A = X*((C(+)B)^-1)^T
+   * B = X*((C(+)A)^-1)^T
+   * C = X*((B(+)A)^-1)^T
+   * <p>
+   * where (+) is the columnwise KhatriRao product. Higher order inputs are
+   * handled likewise, each mode is estimated from the Khatri-Rao product of all
+   * other modes. The updates are solved via the normal equations, see {@link
+   * PARAFAC#estimate(int, INDArray, INDArray, INDArray...)}.
+   */
+  protected void nextIteration() {
+    approximateLoss = Double.NaN;
+    for (int mode = 0; mode < factors.length; mode++) {
+      estimate(mode, factors[mode], Xmatricized[mode], otherFactors(factors, mode));
+    }
+
+    if (missingIndices != null) {
+      imputeMissingValues();
+    }
+  }
+
+  /**
+   * Get the loading matrices of all modes except the given one in descending
+   * mode order, i.e. the Khatri-Rao arguments matching the column order of
+   * the matricized input of the given mode.
+   *
+   * @param factors Loading matrices of all modes
+   * @param mode    Mode to exclude
+   * @return Loading matrices of the other modes
+   */
+  protected static INDArray[] otherFactors(INDArray[] factors, int mode) {
+    final INDArray[] others = new INDArray[factors.length - 1];
+    int i = 0;
+    for (int m = factors.length - 1; m >= 0; m--) {
+      if (m != mode) {
+	others[i++] = factors[m];
+      }
+    }
+    return others;
+  }
+
+  /**
+   * Execute an estimation step for a specific component.
+   * <p>
+   * Instead of pseudo-inverting the (|arr1| * |arr2|) x F Khatri-Rao product
+   * Z = arr1 (+) arr2, the least squares problem is solved via its F x F
+   * normal equations:
+   * <p>
+   * X*(Z^+)^T = (X*Z) * (Z^T*Z)^+ = MTTKRP * (arr1^T*arr1 .* arr2^T*arr2)^+
+   * <p>
+   * where .* is the elementwise product. The MTTKRP is computed without
+   * materializing Z, see {@link MathUtils#mttkrp(INDArray, INDArray...)}. With
+   * more than two Khatri-Rao arguments, the Gram matrices of all arguments are
+   * multiplied elementwise. The constraint of the mode is applied when solving
+   * the normal equations, see {@link PARAFAC#solve(INDArray, INDArray,
+   * INDArray, Constraint)}.
+   *
+   * @param mode        Mode of the component
+   * @param arrToUpdate The component which will be updated in this step
+   * @param Xunfolded   Unfolded input matrix
+   * @param krArgs      Arguments for the kr-product, from the slowest to the
+   *                    fastest running mode
+   */
+  protected void estimate(int mode, INDArray arrToUpdate, INDArray Xunfolded, INDArray... krArgs) {
+    // Gram matrix of the Khatri-Rao product
+    final INDArray gram = gram(krArgs[0]);
+    for (int i = 1; i < krArgs.length; i++) {
+      gram.muli(gram(krArgs[i]));
+    }
+    // Matricized tensor times Khatri-Rao product
+    final INDArray mttkrp = MathUtils.mttkrp(Xunfolded, krArgs);
+    // Solve normal equations
+    solve(arrToUpdate, mttkrp, gram, getConstraint(mode));
+
+    // Keep for the loss computation
+    lastMttkrp = mttkrp;
+    lastGram = gram;
   }
 
   /**
-   * Execute the next iteration:
-   * <p>
-   * A = X*((C(+)B)^-1)^T
-   * B = X*((C(+)A)^-1)^T
-   * C = X*((B(+)A)^-1)^T
-   * <p>
-   * where (+) is the columnwise KhatriRao product.
+   * Solve the least squares problem min ||X - U*Z^T|| for U given its normal
+   * equations, i.e. the MTTKRP X*Z and the Gram matrix Z^T*Z:
+   * <ul>
+   * <li>{@link Constraint#NONE}: U = MTTKRP * (Z^T*Z)^+</li>
+   * <li>{@link Constraint#NON_NEGATIVE}: FNNLS on each row of U, see
+   * {@link MathUtils#fnnls(double[][], double[], Map)}</li>
+   * <li>{@link Constraint#ORTHOGONAL}: U = P*Q^T, where P*S*Q^T is the SVD of
+   * the MTTKRP (orthogonal Procrustes)</li>
+   * <li>{@link Constraint#UNIMODAL}: column wise, each column is the unimodal
+   * regression of its least squares solution given the other columns, see
+   * {@link MathUtils#unimodalRegression(double[])}</li>
+   * </ul>
+   *
+   * @param U          The component which will be updated
+   * @param mttkrp     MTTKRP of shape I x F
+   * @param gram       Gram matrix of the Khatri-Rao product of shape F x F
+   * @param constraint Constraint of the component
    */
-  protected void nextIteration() {
-    estimate(A, Xmatricized[0], C, B);
-    estimate(B, Xmatricized[1], C, A);
-    estimate(C, Xmatricized[2], B, A);
+  protected void solve(INDArray U, INDArray mttkrp, INDArray gram, Constraint constraint) {
+    switch (constraint) {
+      case NONE:
+	mttkrp.mmul(MathUtils.pseudoInvert(gram, false), U);
+	break;
+      case NON_NEGATIVE: {
+	final double[][] G = MathUtils.to2dDoubleArray(gram);
+	final double[][] M = MathUtils.to2dDoubleArray(mttkrp);
+	final double[][] res = new double[M.length][];
+	// All rows share the Gram matrix and thus the factorizations
+	final Map<BitSet, double[][]> factorizations = new HashMap<>();
+	for (int i = 0; i < M.length; i++) {
+	  res[i] = MathUtils.fnnls(G, M[i], factorizations);
+	}
+	U.assign(Nd4j.create(res));
+	break;
+      }
+      case ORTHOGONAL: {
+	final Map<String, INDArray> svd = MathUtils.svd(mttkrp);
+	U.assign(svd.get("U").mmul(MathUtils.t(svd.get("V"))));
+	break;
+      }
+      case UNIMODAL: {
+	final double[][] G = MathUtils.to2dDoubleArray(gram);
+	final double[][] M = MathUtils.to2dDoubleArray(mttkrp);
+	final double[][] res = MathUtils.to2dDoubleArray(U);
+	final double[] y = new double[res.length];
+	for (int f = 0; f < numComponents; f++) {
+	  if (G[f][f] <= 0) {
+	    continue;
+	  }
+	  // Least squares solution of column f given the other columns
+	  for (int i = 0; i < res.length; i++) {
+	    double sum = M[i][f];
+	    for (int g = 0; g < numComponents; g++) {
+	      if (g != f) {
+		sum -= res[i][g] * G[g][f];
+	      }
+	    }
+	    y[i] = sum / G[f][f];
+	  }
+	  final double[] fit = MathUtils.unimodalRegression(y);
+	  for (int i = 0; i < res.length; i++) {
+	    res[i][f] = fit[i];
+	  }
+	}
+	U.assign(Nd4j.create(res));
+	break;
+      }
+      default:
+	throw new InvalidInputException("Constraint " + constraint +
+	  " is not yet implemented.");
+    }
   }
 
   /**
-   * Execute an estimation step for a specific component
+   * Compute the F x F Gram matrix U^T*U of a loading matrix.
    *
-   * @param arrToUpdate The component which will be updated in this step
-   * @param Xunfolded Unfolded input matrix
-   * @param arr1        Left argument for kr-product
-   * @param arr2        Right argument for kr-product
+   * @param U Loading matrix
+   * @return Gram matrix
    */
-  protected void estimate(INDArray arrToUpdate, INDArray Xunfolded, INDArray arr1, INDArray arr2) {
-    // Build Khatri-Rao product
-    INDArray res = MathUtils.khatriRaoProductColumnWise(arr1, arr2);
-    // Invert and transpose
-    res = MathUtils.pseudoInvert(res, true).transposei();
-    // Final matrix multiplication
-    Xunfolded.mmul(res, arrToUpdate);
+  protected INDArray gram(INDArray U) {
+    return MathUtils.t(U).mmul(U);
   }
 
   /**
-   * Calculate the reconstruction calculateLoss
+   * Calculate the reconstruction loss. After an iteration, the loss is
+   * computed without reconstructing the model:
+   * <p>
+   * ||X - M||^2 = ||X||^2 - 2 * &lt;X, M&gt; + ||M||^2
+   * <p>
+   * where &lt;X, M&gt; = sum(MTTKRP .* C) reuses the MTTKRP of the last
+   * estimation step (C, the last mode) and ||M||^2 = sum(A^T*A .* B^T*B .*
+   * C^T*C). If the
+   * loading matrices were modified after the last estimation step, the loss
+   * is computed from the MTTKRP of the first mode instead (see {@link
+   * PARAFAC#calculateObservedLoss()}), with missing values the model is
+   * reconstructed. After a sketched iteration, the loss estimated on the
+   * sample is returned.
    *
-   * @return Reconstruction calculateLoss
+   * @return Reconstruction loss
    */
   protected double calculateLoss() {
-    return Xmatricized[0].squaredDistance(reconstruct());
+    if (!Double.isNaN(approximateLoss)) {
+      return approximateLoss;
+    }
+    if (lastMttkrp == null) {
+      return missingIndices == null ?
+	calculateObservedLoss() : Xmatricized[0].squaredDistance(reconstruct());
+    }
+
+    final INDArray last = factors[factors.length - 1];
+    final double inner = lastMttkrp.mul(last).sumNumber().doubleValue() + imputationCorrection;
+    final double modelNorm = lastGram.mul(gram(last)).sumNumber().doubleValue();
+    final double loss = inputSquaredNorm + imputedSquaredNorm - 2 * inner + modelNorm;
+
+    // Guard against cancellation
+    return Math.max(loss, 0);
+  }
+
+  /**
+   * Calculate the reconstruction loss of the current loading matrices on the
+   * observed cells only, without reconstructing the model:
+   * <p>
+   * ||X - M||^2 = ||X||^2 - 2 * sum(MTTKRP_A .* A) + sum(A^T*A .* B^T*B .*
+   * C^T*C)
+   * <p>
+   * where MTTKRP_A is the MTTKRP of the first mode with the other loading
+   * matrices. The residuals of the missing cells, which still hold the
+   * imputations of the last ALS iterate, are evaluated at these cells only and
+   * subtracted. After an ALS iteration the residuals of the missing cells
+   * vanish, such that this loss is comparable to the one computed by {@link
+   * PARAFAC#calculateLoss()}.
+   *
+   * @return Reconstruction loss on the observed cells
+   */
+  protected double calculateObservedLoss() {
+    final INDArray mttkrp = MathUtils.mttkrp(Xmatricized[0], otherFactors(factors, 0));
+    final double inner = mttkrp.mul(factors[0]).sumNumber().doubleValue();
+    final INDArray gramProduct = gram(factors[0]);
+    for (int mode = 1; mode < factors.length; mode++) {
+      gramProduct.muli(gram(factors[mode]));
+    }
+    final double modelNorm = gramProduct.sumNumber().doubleValue();
+    double loss = inputSquaredNorm + imputedSquaredNorm - 2 * inner + modelNorm;
+
+    if (missingIndices != null) {
+      final double[] model = evaluateMissingCells();
+      final DataBuffer current = Xmatricized[0].data();
+      for (int c = 0; c < model.length; c++) {
+	final double residual = current.getDouble(missingIndices[0][c]) - model[c];
+	loss -= residual * residual;
+      }
+    }
+
+    // Guard against cancellation
+    return Math.max(loss, 0);
   }
 
   /**
    * Get the loss history over all reruns and iterations.
    * First index indicates the run and second index indicates the iteration.
+   * With the {@link Solver#SKETCHED} solver, the first losses of each run are
+   * approximate, see {@link PARAFAC#getNumSketchedIterations()}.
    *
    * @return Loss history
    */
@@ -390,27 +1457,50 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
     return lossHistory;
   }
 
+  /**
+   * Get the number of sketched iterations of each run. The corresponding
+   * leading entries of {@link PARAFAC#getLossHistory()} are approximate
+   * losses, except for every {@link PARAFAC#getExactLossInterval()}-th one,
+   * the remaining entries are the exact losses of the polishing iterations.
+   *
+   * @return Number of sketched iterations of each run
+   */
+  public List<Integer> getNumSketchedIterations() {
+    return numSketchedIterations;
+  }
+
   /**
    * Reconstruct the matrix from the estimated components
    *
    * @return Reconstruction from the estimated components
    */
   protected INDArray reconstruct() {
-    return A.mmul(MathUtils.t(MathUtils.khatriRaoProductColumnWise(C, B)));
+    final INDArray[] others = otherFactors(factors, 0);
+    INDArray kr = others[0];
+    for (int i = 1; i < others.length; i++) {
+      kr = MathUtils.khatriRaoProductColumnWise(kr, others[i]);
+    }
+    return factors[0].mmul(MathUtils.t(kr));
   }
 
   /**
-   * Update the internal state.
+   * Update the internal state. Approximate losses of sketched iterations are
+   * not passed to the improvement criterion, since their sampling noise
+   * does not indicate convergence. Every {@link PARAFAC#exactLossInterval}
+   * sketched iterations, the exact loss is computed and passed instead.
    */
   protected void update() {
     // Update loss
+    final boolean exact = Double.isNaN(approximateLoss);
     loss = calculateLoss();
 
     // Update stopping criteria states
     for (Criterion sc : stoppingCriteria.values()) {
       switch (sc.getType()) {
 	case IMPROVEMENT:
-	  ((ImprovementCriterion) sc).update(loss);
+	  if (exact) {
+	    ((ImprovementCriterion) sc).update(loss);
+	  }
 	  break;
 	default:
 	  sc.update();
@@ -478,6 +1568,54 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
     }
   }
 
+  /**
+   * Get number of threads to run the random starts on.
+   *
+   * @return Number of threads
+   */
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Set number of threads to run the random starts on. With more than one
+   * thread, each start runs on its own copy of the loading matrices and
+   * stopping criteria.
+   *
+   * @param numThreads Number of threads
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      log.warn("Number of threads must be greater " +
+	"than zero.");
+    }
+    else {
+      this.numThreads = numThreads;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the executor the random starts are run on.
+   *
+   * @return Executor, or null if the starts are run based on numThreads
+   */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Set the executor the random starts are run on. If set, the starts are run
+   * in parallel on this executor regardless of numThreads. The executor is not
+   * shut down after the build.
+   *
+   * @param executor Executor, or null to run based on numThreads
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+    resetState();
+  }
+
   /**
    * Get the loading matrix initialization method.
    *
@@ -498,19 +1636,262 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
     resetState();
   }
 
+  /**
+   * Get the initial loading matrices for {@link Initialization#PROVIDED}.
+   *
+   * @return Initial loading matrices
+   */
+  public Map<String, Tensor> getInitialLoadingMatrices() {
+    return initialLoadingMatrices;
+  }
+
+  /**
+   * Set the initial loading matrices for {@link Initialization#PROVIDED}, keyed
+   * as in {@link PARAFAC#getLoadingMatrices()} (A,B,C,...). Usually these are
+   * the loading matrices of a previously built model. The score matrix A may
+   * have fewer rows than the next input, if new samples were appended.
+   *
+   * @param initialLoadingMatrices Initial loading matrices
+   */
+  public void setInitialLoadingMatrices(Map<String, Tensor> initialLoadingMatrices) {
+    this.initialLoadingMatrices = ImmutableMap.copyOf(initialLoadingMatrices);
+    resetState();
+  }
+
+  /**
+   * Get the number of power iterations of the randomized SVD initialization.
+   *
+   * @return Number of power iterations
+   */
+  public int getNumPowerIterations() {
+    return numPowerIterations;
+  }
+
+  /**
+   * Set the number of power iterations of the randomized SVD initialization.
+   * More iterations yield more accurate singular vectors if the singular
+   * values decay slowly.
+   *
+   * @param numPowerIterations Number of power iterations
+   */
+  public void setNumPowerIterations(int numPowerIterations) {
+    if (numPowerIterations < 0) {
+      log.warn("Number of power iterations must be non-negative.");
+    }
+    else {
+      this.numPowerIterations = numPowerIterations;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the ALS acceleration method.
+   *
+   * @return ALS acceleration method
+   */
+  public Acceleration getAcceleration() {
+    return acceleration;
+  }
+
+  /**
+   * Set the ALS acceleration method.
+   *
+   * @param acceleration ALS acceleration method
+   */
+  public void setAcceleration(Acceleration acceleration) {
+    this.acceleration = acceleration;
+    resetState();
+  }
+
+  /**
+   * Get the least squares solver.
+   *
+   * @return Least squares solver
+   */
+  public Solver getSolver() {
+    return solver;
+  }
+
+  /**
+   * Set the least squares solver.
+   *
+   * @param solver Least squares solver
+   */
+  public void setSolver(Solver solver) {
+    this.solver = solver;
+    resetState();
+  }
+
+  /**
+   * Get the sampling of the Khatri-Rao product rows for the sketched solver.
+   *
+   * @return Sketch sampling
+   */
+  public SketchSampling getSketchSampling() {
+    return sketchSampling;
+  }
+
+  /**
+   * Set the sampling of the Khatri-Rao product rows for the sketched solver.
+   *
+   * @param sketchSampling Sketch sampling
+   */
+  public void setSketchSampling(SketchSampling sketchSampling) {
+    this.sketchSampling = sketchSampling;
+    resetState();
+  }
+
+  /**
+   * Get the number of sampled Khatri-Rao product rows per least squares
+   * problem.
+   *
+   * @return Sketch size
+   */
+  public int getSketchSize() {
+    return sketchSize;
+  }
+
+  /**
+   * Set the number of sampled Khatri-Rao product rows per least squares
+   * problem.
+   *
+   * @param sketchSize Sketch size
+   */
+  public void setSketchSize(int sketchSize) {
+    if (sketchSize < 1) {
+      log.warn("Sketch size must be greater " +
+	"than zero.");
+    }
+    else {
+      this.sketchSize = sketchSize;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the number of exact iterations after the sketched iterations.
+   *
+   * @return Number of polishing iterations
+   */
+  public int getNumPolishingIterations() {
+    return numPolishingIterations;
+  }
+
+  /**
+   * Set the number of exact iterations after the sketched iterations.
+   *
+   * @param numPolishingIterations Number of polishing iterations
+   */
+  public void setNumPolishingIterations(int numPolishingIterations) {
+    if (numPolishingIterations < 0) {
+      log.warn("Number of polishing iterations must not be " +
+	"negative.");
+    }
+    else {
+      this.numPolishingIterations = numPolishingIterations;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the number of sketched iterations between two exact losses.
+   *
+   * @return Exact loss interval
+   */
+  public int getExactLossInterval() {
+    return exactLossInterval;
+  }
+
+  /**
+   * Set the number of sketched iterations between two exact losses. Only the
+   * exact losses are passed to the improvement criterion, each costs about as
+   * much as an exact estimation of a single mode.
+   *
+   * @param exactLossInterval Exact loss interval
+   */
+  public void setExactLossInterval(int exactLossInterval) {
+    if (exactLossInterval < 1) {
+      log.warn("Exact loss interval must be greater " +
+	"than zero.");
+    }
+    else {
+      this.exactLossInterval = exactLossInterval;
+      resetState();
+    }
+  }
+
+  /**
+   * Get the constraints of the modes.
+   *
+   * @return Constraint of each mode
+   */
+  public Constraint[] getConstraints() {
+    return constraints;
+  }
+
+  /**
+   * Set the constraints of the modes. The i-th constraint applies to the i-th
+   * mode, modes without a constraint are unconstrained.
+   *
+   * @param constraints Constraint of each mode
+   */
+  public void setConstraints(Constraint... constraints) {
+    this.constraints = constraints.clone();
+    resetState();
+  }
+
+  /**
+   * Get the constraint of a mode.
+   *
+   * @param mode Mode
+   * @return Constraint of the mode
+   */
+  protected Constraint getConstraint(int mode) {
+    if (mode < constraints.length && constraints[mode] != null) {
+      return constraints[mode];
+    }
+    return Constraint.NONE;
+  }
+
+  /**
+   * Get the missing value handling.
+   *
+   * @return Missing value handling
+   */
+  public MissingValueHandling getMissingValueHandling() {
+    return missingValueHandling;
+  }
+
+  /**
+   * Set the missing value handling.
+   *
+   * @param missingValueHandling Missing value handling
+   */
+  public void setMissingValueHandling(MissingValueHandling missingValueHandling) {
+    this.missingValueHandling = missingValueHandling;
+    resetState();
+  }
+
   @Override
   protected void resetState() {
     super.resetState();
-    A = null;
-    B = null;
-    C = null;
-    Xmatricized = new INDArray[3];
+    factors = null;
+    Xmatricized = null;
+    missingSubscripts = null;
+    missingIndices = null;
+    previousLoadingMatrices = null;
+    lastMttkrp = null;
+    lastGram = null;
     lossHistory = new ArrayList<>();
+    numSketchedIterations = new ArrayList<>();
+    approximateLoss = Double.NaN;
     bestLoss = Double.MAX_VALUE;
+    bestStart = 0;
   }
 
   /**
    * Get the loading matrices A,B,C with the lowest reconstruction error.
+   * Higher order models continue with D,E,... for the further modes.
    *
    * @return Loading matrices with the lowest reconstruction error
    */
@@ -520,18 +1901,18 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
       log.warn("Loading matrices are accessed before the model was built.");
       return ImmutableMap.of();
     } else {
-      return ImmutableMap.of(
-        "A", Tensor.create(bestLoadingMatrices[0]),
-        "B", Tensor.create(bestLoadingMatrices[1]),
-        "C", Tensor.create(bestLoadingMatrices[2])
-      );
+      final ImmutableMap.Builder<String, Tensor> builder = ImmutableMap.builder();
+      for (int mode = 0; mode < bestLoadingMatrices.length; mode++) {
+	builder.put(String.valueOf((char) ('A' + mode)), Tensor.create(bestLoadingMatrices[mode]));
+      }
+      return builder.build();
     }
   }
 
 
   /**
    * Use PARAFAC to generate score (A) of new data based on a previously calibrated
-   * model using its loadings (B,C).
+   * model using its loadings (B,C,...).
    *
    * See also: <a href='https://onlinelibrary.wiley.com/doi/full/10.1002/cem.1037'>Multi‐way prediction in the presence of uncalibrated interferents</a>
    *
@@ -548,9 +1929,14 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
       );
     }
 
+    if (input.order() != factors.length) {
+      throw new InvalidInputException("Input must be of order " +
+	factors.length + " but was of order " + input.order() + ".");
+    }
+
     INDArray Anew = Nd4j.create(input.size(0), numComponents);
     final INDArray Xmatricized = MathUtils.matricize(input.getData(), 0);
-    estimate(Anew, Xmatricized, C, B);
+    estimate(0, Anew, Xmatricized, otherFactors(factors, 0));
     return Tensor.create(Anew);
   }
 
@@ -569,6 +1955,107 @@ public class PARAFAC extends UnsupervisedAlgorithm implements LoadingMatrixAcces
     /**
      * Use eigenvalues calculated with SVD.
      */
-    SVD
+    SVD,
+    /**
+     * Use the leading singular vectors computed with a randomized SVD. Scales
+     * linearly with the mode sizes, see {@link
+     * MathUtils#randomizedSvd(INDArray, int, int, int, long)}.
+     */
+    RANDOMIZED_SVD,
+    /**
+     * Use the loading matrices provided via {@link
+     * PARAFAC#setInitialLoadingMatrices(Map)} (warm start).
+     */
+    PROVIDED
+  }
+
+  /**
+   * Enum to define the acceleration method of the ALS iterations.
+   */
+  public enum Acceleration {
+    /**
+     * Plain ALS.
+     */
+    NONE,
+    /**
+     * Extrapolate along the ALS update after each iteration, see {@link
+     * PARAFAC#lineSearch(int)}.
+     */
+    LINE_SEARCH
+  }
+
+  /**
+   * Enum to define the solver of the least squares problems.
+   */
+  public enum Solver {
+    /**
+     * Solve the least squares problems exactly.
+     */
+    EXACT,
+    /**
+     * Solve the least squares problems on a sample of the Khatri-Rao product
+     * rows until the stopping criteria match, then polish the solution with
+     * exact iterations. The improvement criterion only considers the exact
+     * losses, which are computed every {@link
+     * PARAFAC#setExactLossInterval(int)} sketched iterations. The iteration
+     * and improvement criteria are restarted for the polishing iterations,
+     * which end early if a criterion matches again. The time criterion is not
+     * restarted.
+     */
+    SKETCHED
+  }
+
+  /**
+   * Enum to define how the Khatri-Rao product rows are sampled for the
+   * sketched solver. Each Khatri-Rao product row is sampled with the product
+   * of the probabilities of its factor rows.
+   */
+  public enum SketchSampling {
+    /**
+     * Sample all rows with equal probability.
+     */
+    UNIFORM,
+    /**
+     * Sample the rows of each factor proportional to their leverage scores.
+     */
+    LEVERAGE_SCORE
+  }
+
+  /**
+   * Enum to define the constraint of a mode.
+   */
+  public enum Constraint {
+    /**
+     * Unconstrained least squares.
+     */
+    NONE,
+    /**
+     * Non-negative loadings.
+     */
+    NON_NEGATIVE,
+    /**
+     * Loading matrix with orthonormal columns.
+     */
+    ORTHOGONAL,
+    /**
+     * Unimodal loading vectors, i.e. each column is non-decreasing up to its
+     * peak and non-increasing afterwards.
+     */
+    UNIMODAL
+  }
+
+  /**
+   * Enum to define how missing values (NaNs) in the input are handled.
+   */
+  public enum MissingValueHandling {
+    /**
+     * Reject inputs that contain missing values.
+     */
+    REJECT,
+    /**
+     * Impute missing values with the current model after each iteration
+     * (expectation maximization).
+     */
+    EM_IMPUTATION
   }
 }
@@ -8,9 +8,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Abstract algorithm.
@@ -33,6 +33,9 @@ public abstract class AbstractAlgorithm implements Serializable, Cloneable {
   /** Enable debug mode */
   protected boolean isDebug;
 
+  /** Flag if {@link AbstractAlgorithm#stopExecution()} has been called */
+  protected volatile boolean isForceStop;
+
   /** Default constructor. */
   public AbstractAlgorithm() {
     initialize();
@@ -41,8 +44,10 @@ public abstract class AbstractAlgorithm implements Serializable, Cloneable {
 
   /** Initialize the internal algorithm state. */
   protected void initialize() {
-    this.stoppingCriteria = new HashMap<>();
+    // Execution may be stopped from another thread
+    this.stoppingCriteria = new ConcurrentHashMap<>();
     this.isFinished = false;
+    this.isForceStop = false;
   }
 
   /** Finish the internal algorithm state initialization. */
@@ -140,6 +145,7 @@ public abstract class AbstractAlgorithm implements Serializable, Cloneable {
    */
   public void stopExecution() {
     logger.debug("Stop execution invoked. Algorithm will stop at next iteration.");
+    this.isForceStop = true;
     this.stoppingCriteria.put(CriterionType.KILL, CriterionUtils.kill());
   }
 
@@ -148,7 +154,7 @@ public abstract class AbstractAlgorithm implements Serializable, Cloneable {
    * @return True if {@link AbstractAlgorithm#stopExecution()} has been called.
    */
   protected boolean isForceStop(){
-    return stoppingCriteria.containsKey(CriterionType.KILL);
+    return isForceStop;
   }
 
   //  /**
@@ -1,5 +1,6 @@
 package nz.ac.waikato.cms.adams.multiway.data;
 
+import nz.ac.waikato.cms.adams.multiway.data.tensor.SparseTensor;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.ArrayUtils;
 
@@ -9,7 +10,9 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Data reader class.
@@ -31,6 +34,50 @@ public class DataReader {
    * @throws IOException Could not access given path
    */
   public static double[][][] read3WaySparse(
+    String path, String sep, int valueIdx, boolean hasHeader) throws IOException {
+    final SparseTensor coordinates = read3WaySparseCoordinates(path, sep, valueIdx, hasHeader);
+    final int[] x = coordinates.getIndices(0);
+    final int[] y = coordinates.getIndices(1);
+    final int[] z = coordinates.getIndices(2);
+    final double[] vals = coordinates.getValues();
+
+    // Init NaN data matrix
+    final int dimX = (int) coordinates.size(0);
+    final int dimY = (int) coordinates.size(1);
+    final int dimZ = (int) coordinates.size(2);
+    double[][][] data = new double[dimX][dimY][dimZ];
+    for (int i = 0; i < dimX; i++) {
+      for (int j = 0; j < dimY; j++) {
+	for (int k = 0; k < dimZ; k++) {
+	  data[i][j][k] = Double.NaN;
+	}
+      }
+    }
+
+    // Fill data matrix
+    for (int i = 0; i < vals.length; i++) {
+      data[x[i]][y[i]][z[i]] = vals[i];
+    }
+
+    return data;
+  }
+
+  /**
+   * Read three-way sparse data of the following format: x0 y0 z0 value0 x0 y0 z1 value1 ...
+   *
+   * <p>In contrast to {@link DataReader#read3WaySparse(String, String, int,
+   * boolean)}, the data is kept in coordinate format, i.e. missing points are
+   * zero and memory scales with the number of entries in the file. If a
+   * coordinate occurs in several lines, the value of the last line is used.
+   *
+   * @param path      Path to data
+   * @param sep       CSV separator
+   * @param valueIdx  Data value index
+   * @param hasHeader File includes a header at the top
+   * @return Sparse tensor of the entries
+   * @throws IOException Could not access given path
+   */
+  public static SparseTensor read3WaySparseCoordinates(
     String path, String sep, int valueIdx, boolean hasHeader) throws IOException {
     List<String> lines = FileUtils.readLines(new File(path), Charset.defaultCharset());
 
@@ -39,9 +86,10 @@ public class DataReader {
     List<Integer> y = new ArrayList<>();
     List<Integer> z = new ArrayList<>();
     List<Double> vals = new ArrayList<>();
+    Map<List<Integer>, Integer> positions = new HashMap<>();
 
     int[] idxs = new int[]{0, 1, 2, 3};
-    ArrayUtils.removeElement(idxs, valueIdx);
+    idxs = ArrayUtils.removeElement(idxs, valueIdx);
 
     for (String line : lines) {
 
@@ -57,34 +105,31 @@ public class DataReader {
       final String[] split = line.split(sep);
       rowCount++;
 
-      // Add indices and corresponding value
-      x.add(Integer.valueOf(split[idxs[0]]));
-      y.add(Integer.valueOf(split[idxs[1]]));
-      z.add(Integer.valueOf(split[idxs[2]]));
-      vals.add(Double.valueOf(split[valueIdx]));
-    }
-
-    // Get maximum indices
-    int maxX = Collections.max(x);
-    int maxY = Collections.max(y);
-    int maxZ = Collections.max(z);
-
-    // Init NaN data matrix
-    double[][][] data = new double[maxX + 1][maxY + 1][maxZ + 1];
-    for (int i = 0; i < maxX + 1; i++) {
-      for (int j = 0; j < maxY + 1; j++) {
-	for (int k = 0; k < maxZ + 1; k++) {
-	  data[i][j][k] = Double.NaN;
-	}
+      // Add indices and corresponding value, later lines overwrite earlier
+      // lines with the same coordinate
+      final int xi = Integer.valueOf(split[idxs[0]]);
+      final int yi = Integer.valueOf(split[idxs[1]]);
+      final int zi = Integer.valueOf(split[idxs[2]]);
+      final double value = Double.valueOf(split[valueIdx]);
+      final Integer pos = positions.putIfAbsent(Arrays.asList(xi, yi, zi), vals.size());
+      if (pos != null) {
+	vals.set(pos, value);
+      }
+      else {
+	x.add(xi);
+	y.add(yi);
+	z.add(zi);
+	vals.add(value);
       }
     }
 
-    // Fill data matrix
-    for (int i = 0; i < vals.size(); i++) {
-      data[x.get(i)][y.get(i)][z.get(i)] = vals.get(i);
-    }
-
-    return data;
+    final int[][] indices = {
+      x.stream().mapToInt(Integer::intValue).toArray(),
+      y.stream().mapToInt(Integer::intValue).toArray(),
+      z.stream().mapToInt(Integer::intValue).toArray()
+    };
+    final double[] values = vals.stream().mapToDouble(Double::doubleValue).toArray();
+    return SparseTensor.create(indices, values);
   }
 
   /**
@@ -1,6 +1,7 @@
 package nz.ac.waikato.cms.adams.multiway.data;
 
 import com.google.common.collect.ImmutableMap;
+import nz.ac.waikato.cms.adams.multiway.data.tensor.SparseTensor;
 import nz.ac.waikato.cms.adams.multiway.data.tensor.Tensor;
 import nz.ac.waikato.cms.adams.multiway.exceptions.InvalidInputException;
 import org.apache.commons.lang3.ArrayUtils;
@@ -11,11 +12,15 @@ import org.apache.commons.math3.linear.SingularValueDecomposition;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.checkutil.CheckUtil;
 import org.nd4j.linalg.eigen.Eigen;
+import org.nd4j.linalg.factory.Broadcast;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.indexing.INDArrayIndex;
 import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.nd4j.linalg.ops.transforms.Transforms;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -135,6 +140,153 @@ public class MathUtils {
     return res;
   }
 
+  /**
+   * Calculate the matricized-tensor-times-Khatri-Rao product (MTTKRP) {@code
+   * X * (U_1 (+) U_2 (+) ... (+) U_n)} without building the Khatri-Rao
+   * product.
+   * <p>
+   * The columns of {@code Xunfolded} are expected in the same order as the
+   * rows of {@link MathUtils#khatriRaoProductColumnWise(INDArray, INDArray)},
+   * i.e. the row index of the last factor runs fastest, which is the layout
+   * produced by {@link MathUtils#matricize(INDArray, int)} if the factors are
+   * given in descending mode order. The fastest running mode is contracted with
+   * a single matrix multiplication, the remaining modes afterwards column wise.
+   *
+   * @param Xunfolded Matricized tensor of shape I x (|U_1| * ... * |U_n|)
+   * @param factors   Khatri-Rao arguments, from the slowest to the fastest
+   *                  running mode
+   * @return MTTKRP of shape I x F
+   */
+  public static INDArray mttkrp(INDArray Xunfolded, INDArray... factors) {
+    final long dim = factors[0].size(1);
+    long numColumns = 1;
+    for (INDArray U : factors) {
+      if (U.size(1) != dim) {
+	throw new RuntimeException("Factors did not match in column dimension.");
+      }
+      numColumns *= U.size(0);
+    }
+    if (Xunfolded.size(1) != numColumns) {
+      throw new RuntimeException("Column dimension of the unfolded tensor " +
+	"does not match the Khatri-Rao product of the factors.");
+    }
+    final long numRows = Xunfolded.size(0);
+
+    // Contract fastest running mode: (I*|rest| x |V|) * (|V| x F)
+    final INDArray V = factors[factors.length - 1];
+    long rest = numColumns / V.size(0);
+    INDArray partial = Xunfolded.reshape('c', numRows * rest, V.size(0)).mmul(V);
+
+    // Contract slower running modes: sum_u partial[i,u,f] * U[u,f]
+    for (int n = factors.length - 2; n >= 0; n--) {
+      final INDArray U = factors[n];
+      rest /= U.size(0);
+      partial = partial.reshape('c', numRows * rest, U.size(0), dim);
+      Broadcast.mul(partial, U, partial, 1, 2);
+      partial = partial.sum(1);
+    }
+    return partial;
+  }
+
+  /**
+   * Calculate the MTTKRP of a sparse tensor in the given mode, i.e. the same
+   * result as {@link MathUtils#mttkrp(INDArray, INDArray...)} on the
+   * matricized dense tensor, by iterating over the stored entries only: Each
+   * entry {@code x} at {@code (i_1, ..., i_N)} adds {@code x} times the
+   * Hadamard product of the rows {@code U_n[i_n, :]} of all other modes to
+   * row {@code i_mode} of the result.
+   *
+   * @param X       Sparse tensor
+   * @param mode    Mode that is not contracted
+   * @param factors Factor matrices of all modes, the factor at {@code mode} is
+   *                ignored
+   * @return MTTKRP of shape |X_mode| x F
+   */
+  public static INDArray mttkrp(SparseTensor X, int mode, INDArray... factors) {
+    final int numModes = X.order();
+    if (factors.length != numModes) {
+      throw new RuntimeException("Number of factors does not match the " +
+	"order of the sparse tensor.");
+    }
+    final int dim = (int) factors[0].size(1);
+
+    // Work on primitive copies to avoid a JNI call per entry
+    final double[][][] U = new double[numModes][][];
+    for (int n = 0; n < numModes; n++) {
+      if (factors[n].size(1) != dim) {
+	throw new RuntimeException("Factors did not match in column dimension.");
+      }
+      if (n != mode) {
+	U[n] = factors[n].toDoubleMatrix();
+      }
+    }
+
+    final double[][] res = new double[(int) X.size(mode)][dim];
+    final double[] values = X.getValues();
+    final int[] rowIndices = X.getIndices(mode);
+    final double[] product = new double[dim];
+    for (int i = 0; i < values.length; i++) {
+      Arrays.fill(product, values[i]);
+      for (int n = 0; n < numModes; n++) {
+	if (n == mode) {
+	  continue;
+	}
+	final double[] row = U[n][X.getIndices(n)[i]];
+	for (int f = 0; f < dim; f++) {
+	  product[f] *= row[f];
+	}
+      }
+
+      final double[] resRow = res[rowIndices[i]];
+      for (int f = 0; f < dim; f++) {
+	resRow[f] += product[f];
+      }
+    }
+    return Nd4j.create(res).castTo(factors[0].dataType());
+  }
+
+  /**
+   * Calculate the beta divergence D_beta(x | y), summed over all cells. Special
+   * cases are the Itakura-Saito divergence (beta = 0), the generalized
+   * Kullback-Leibler divergence (beta = 1) and half the squared Euclidean
+   * distance (beta = 2). For beta &lt;= 1, y must be strictly positive, for
+   * beta = 0 also x.
+   *
+   * @param x    Reference array
+   * @param y    Approximation of the same shape
+   * @param beta Divergence parameter
+   * @return Beta divergence
+   */
+  public static double betaDivergence(INDArray x, INDArray y, double beta) {
+    if (!Arrays.equals(x.shape(), y.shape())) {
+      throw new InvalidInputException("Shapes " + Arrays.toString(x.shape()) +
+	" and " + Arrays.toString(y.shape()) + " do not match.");
+    }
+    if (beta == 2) {
+      return 0.5 * x.squaredDistance(y);
+    }
+
+    final double[] xs = Nd4j.toFlattened('c', x).toDoubleVector();
+    final double[] ys = Nd4j.toFlattened('c', y).toDoubleVector();
+    double sum = 0;
+    for (int i = 0; i < xs.length; i++) {
+      final double xi = xs[i];
+      final double yi = ys[i];
+      if (beta == 1) {
+	// Zeros in x only contribute yi
+	sum += (xi > 0 ? xi * Math.log(xi / yi) : 0) - xi + yi;
+      }
+      else if (beta == 0) {
+	sum += xi / yi - Math.log(xi / yi) - 1;
+      }
+      else {
+	sum += (Math.pow(xi, beta) + (beta - 1) * Math.pow(yi, beta)
+	  - beta * xi * Math.pow(yi, beta - 1)) / (beta * (beta - 1));
+      }
+    }
+    return sum;
+  }
+
   /**
    * Outer product
    *
@@ -204,6 +356,20 @@ public class MathUtils {
       axis = dims + axis;
     }
 
+    final INDArray perm = X.permute(matricizePermutation(dims, axis));
+    return perm.reshape(X.size(axis), -1);
+  }
+
+  /**
+   * Permutation of the axes applied by {@link MathUtils#matricize(INDArray,
+   * int)}: the given axis first, followed by the remaining axes in descending
+   * order.
+   *
+   * @param dims Number of dimensions
+   * @param axis Flattening axis (non-negative)
+   * @return Permutation array
+   */
+  public static int[] matricizePermutation(int dims, int axis) {
     // Collect possible axes
     int[] axes = new int[dims];
     for (int i = 0; i < dims; i++) {
@@ -218,13 +384,11 @@ public class MathUtils {
     for (int i = 0; i < rms.length; i++) {
       permutation[i + 1] = rms[i];
     }
-
-    final INDArray perm = X.permute(permutation);
-    return perm.reshape(X.size(axis), -1);
+    return permutation;
   }
 
   /**
-   * Revert {@link MathUtils#matricize(INDArray, int)}
+   * Revert {@link MathUtils#matricize(INDArray, int)} for three-way tensors.
    *
    * @param X    Input array
    * @param axis Fold axis
@@ -234,32 +398,37 @@ public class MathUtils {
    */
   public static INDArray invertMatricize(INDArray X, int axis, int dim2, int dim3) {
     // Convert negative axis to equivalent positive form
-    final int dims = 3;
     if (axis < 0) {
-      axis = dims + axis;
+      axis = 3 + axis;
     }
+    return invertMatricize(X, axis, extendIdxToArray(new long[]{dim2, dim3}, axis, X.size(0)));
+  }
 
-    // Collect possible axes
-    int[] axes = new int[dims];
-    for (int i = 0; i < dims; i++) {
-      axes[dims - 1 - i] = i;
-    }
-
-
-    // Generate permutation array
-    final int[] rms = ArrayUtils.removeElement(axes, axis);
-    int[] permutation = new int[dims];
-    permutation[0] = axis;
-    for (int i = 0; i < rms.length; i++) {
-      permutation[i + 1] = rms[i];
+  /**
+   * Revert {@link MathUtils#matricize(INDArray, int)} for tensors of any
+   * order.
+   *
+   * @param X     Input array
+   * @param axis  Fold axis
+   * @param shape Shape of the folded tensor
+   * @return Folded Tensor
+   */
+  public static INDArray invertMatricize(INDArray X, int axis, long[] shape) {
+    // Convert negative axis to equivalent positive form
+    final int dims = shape.length;
+    if (axis < 0) {
+      axis = dims + axis;
     }
 
+    final int[] permutation = matricizePermutation(dims, axis);
+    long[] permutedShape = new long[dims];
     int[] invPerm = new int[dims];
     for (int i = 0; i < dims; i++) {
+      permutedShape[i] = shape[permutation[i]];
       invPerm[permutation[i]] = i;
     }
 
-    X = X.reshape(X.size(0), dim3, dim2);
+    X = X.reshape(permutedShape);
     X = X.permute(invPerm);
     return X;
   }
@@ -476,6 +645,115 @@ public class MathUtils {
   }
 
 
+  /**
+   * Compute a truncated SVD of the given matrix with a randomized range finder,
+   * see <a href="https://doi.org/10.1137/090771806">Halko et al., Finding
+   * structure with randomness</a>. Only products of the input with thin
+   * matrices are formed, such that the costs scale linearly with both
+   * dimensions of the input.
+   *
+   * @param x                  Input matrix of shape m x n
+   * @param rank               Number of singular vectors to compute (at most
+   *                           min(m, n) are returned)
+   * @param oversampling       Number of additional random directions
+   * @param numPowerIterations Number of power iterations to sharpen the spectrum
+   * @param seed               Seed for the random directions
+   * @return SVD matrices U (m x rank), V (n x rank) and the singular values
+   * SVAL
+   */
+  public static Map<String, INDArray> randomizedSvd(INDArray x, int rank, int oversampling, int numPowerIterations, long seed) {
+    final int rows = (int) x.size(0);
+    final int columns = (int) x.size(1);
+    final int sketchSize = Math.min(rank + oversampling, Math.min(rows, columns));
+
+    // Orthonormal basis of the range of x applied to random directions
+    INDArray Q = orthonormalBasis(x.mmul(Nd4j.randn(columns, sketchSize, seed)));
+    for (int i = 0; i < numPowerIterations; i++) {
+      final INDArray Z = orthonormalBasis(t(x).mmul(Q));
+      Q = orthonormalBasis(x.mmul(Z));
+    }
+
+    // SVD of the small projected matrix
+    final Map<String, INDArray> svd = svd(t(Q).mmul(x));
+    final int numVectors = Math.min(rank, sketchSize);
+    final INDArrayIndex columnIdx = NDArrayIndex.interval(0, numVectors);
+    final INDArray S = svd.get("S");
+    final INDArray singularValues = Nd4j.create(numVectors, 1);
+    for (int i = 0; i < numVectors; i++) {
+      singularValues.putScalar(i, 0, S.getDouble(i, i));
+    }
+    return ImmutableMap.of(
+      "U", Q.mmul(svd.get("U").get(NDArrayIndex.all(), columnIdx)),
+      "V", svd.get("V").get(NDArrayIndex.all(), columnIdx).dup(),
+      "SVAL", singularValues
+    );
+  }
+
+  /**
+   * Compute the dominant singular vectors of the given matrix with the power
+   * method, alternating u = x*v and v = x^T*u until v changes by less than the
+   * given tolerance. The signs satisfy u^T*x*v &gt;= 0.
+   *
+   * @param x             Input matrix of shape m x n
+   * @param v0            Initial right singular vector of length n, e.g. the
+   *                      result of a previous call on a similar matrix, or
+   *                      null to start from the column norms of x
+   * @param maxIterations Maximum number of iterations
+   * @param tol           Tolerance on the change of v between two iterations
+   * @return First left (m x 1) and first right (n x 1) singular vector
+   */
+  public static INDArray[] dominantSingularVectors(INDArray x, INDArray v0, int maxIterations, double tol) {
+    INDArray v = v0 == null ? x.norm2(0).reshape(-1, 1) : v0.reshape(-1, 1).dup();
+    final double vNorm = v.norm2Number().doubleValue();
+    if (vNorm == 0) {
+      // Start from the first unit vector
+      v = Nd4j.zeros(x.dataType(), x.size(1), 1);
+      v.putScalar(0, 0, 1);
+    }
+    else {
+      v.divi(vNorm);
+    }
+
+    INDArray u = x.mmul(v);
+    for (int i = 0; i < maxIterations; i++) {
+      final double uNorm = u.norm2Number().doubleValue();
+      if (uNorm == 0) {
+	break;
+      }
+      u.divi(uNorm);
+
+      final INDArray vNew = t(x).mmul(u);
+      final double vNewNorm = vNew.norm2Number().doubleValue();
+      if (vNewNorm == 0) {
+	break;
+      }
+      vNew.divi(vNewNorm);
+
+      final double change = vNew.distance2(v);
+      v = vNew;
+      u = x.mmul(v);
+      if (change < tol) {
+	break;
+      }
+    }
+
+    final double uNorm = u.norm2Number().doubleValue();
+    if (uNorm > 0) {
+      u.divi(uNorm);
+    }
+    return new INDArray[]{u, v};
+  }
+
+  /**
+   * Compute an orthonormal basis of the column space of a thin matrix.
+   *
+   * @param Y Matrix of shape m x l with m &gt;= l
+   * @return Orthonormal basis of shape m x l
+   */
+  private static INDArray orthonormalBasis(INDArray Y) {
+    return svd(Y).get("U");
+  }
+
   /**
    * Orthonormalize the given matrix with the Gram-Schmidt process.
    *
@@ -551,6 +829,326 @@ public class MathUtils {
     return new Tuple<>(A, eigenvalues);
   }
 
+  /**
+   * Non-negative least squares on the normal equations (FNNLS), see
+   * <a href="https://doi.org/10.1002/(SICI)1099-128X(199709/10)11:5%3C393::AID-CEM483%3E3.0.CO;2-L">Bro
+   * and de Jong, A fast non-negativity-constrained least squares algorithm</a>.
+   * Solves min ||b - A*x|| subject to x &gt;= 0, given only A^T*A and A^T*b.
+   *
+   * @param AtA Matrix A^T*A of shape F x F
+   * @param Atb Vector A^T*b of length F
+   * @return Non-negative solution x
+   */
+  public static double[] fnnls(double[][] AtA, double[] Atb) {
+    return fnnls(AtA, Atb, new HashMap<>());
+  }
+
+  /**
+   * Non-negative least squares on the normal equations (FNNLS), see {@link
+   * MathUtils#fnnls(double[][], double[])}. The Cholesky factorizations of the
+   * passive submatrices of A^T*A are cached in the given map, such that they
+   * can be reused when solving for several right hand sides A^T*b with the
+   * same A^T*A, e.g. all rows of a loading matrix.
+   *
+   * @param AtA            Matrix A^T*A of shape F x F
+   * @param Atb            Vector A^T*b of length F
+   * @param factorizations Cache of the factorizations per passive set, must
+   *                       only be shared between calls with the same A^T*A
+   * @return Non-negative solution x
+   */
+  public static double[] fnnls(double[][] AtA, double[] Atb, Map<BitSet, double[][]> factorizations) {
+    final int n = Atb.length;
+    double normInf = 0;
+    for (double[] row : AtA) {
+      double rowSum = 0;
+      for (double v : row) {
+	rowSum += Math.abs(v);
+      }
+      normInf = Math.max(normInf, rowSum);
+    }
+    final double tol = 10 * Math.ulp(1.0) * normInf * n;
+    final int maxIter = 30 * n;
+
+    final boolean[] passive = new boolean[n];
+    double[] x = new double[n];
+    double[] w = Atb.clone();
+    int iter = 0;
+    while (iter < maxIter) {
+      // Variable with the largest gradient in the active set
+      int t = -1;
+      for (int j = 0; j < n; j++) {
+	if (!passive[j] && w[j] > tol && (t < 0 || w[j] > w[t])) {
+	  t = j;
+	}
+      }
+      if (t < 0) {
+	break;
+      }
+      passive[t] = true;
+
+      // Solve unconstrained on the passive set, step back while infeasible
+      double[] z = solvePassive(AtA, Atb, passive, factorizations);
+      while (iter < maxIter) {
+	iter++;
+	double alpha = Double.POSITIVE_INFINITY;
+	for (int j = 0; j < n; j++) {
+	  if (passive[j] && z[j] <= tol) {
+	    alpha = Math.min(alpha, x[j] / (x[j] - z[j]));
+	  }
+	}
+	if (alpha == Double.POSITIVE_INFINITY) {
+	  break;
+	}
+	for (int j = 0; j < n; j++) {
+	  x[j] += alpha * (z[j] - x[j]);
+	  if (passive[j] && Math.abs(x[j]) < tol) {
+	    passive[j] = false;
+	    x[j] = 0;
+	  }
+	}
+	z = solvePassive(AtA, Atb, passive, factorizations);
+      }
+      x = z;
+
+      // Gradient w = A^T*b - A^T*A*x
+      for (int i = 0; i < n; i++) {
+	double sum = Atb[i];
+	for (int j = 0; j < n; j++) {
+	  sum -= AtA[i][j] * x[j];
+	}
+	w[i] = sum;
+      }
+    }
+    return x;
+  }
+
+  /**
+   * Solve the normal equations restricted to the passive variables in the
+   * least squares sense with a Cholesky factorization of the passive
+   * submatrix. Other variables are set to zero.
+   *
+   * @param AtA            Matrix A^T*A
+   * @param Atb            Vector A^T*b
+   * @param passive        Passive set
+   * @param factorizations Cache of the factorizations per passive set
+   * @return Solution with zeros outside the passive set
+   */
+  private static double[] solvePassive(double[][] AtA, double[] Atb, boolean[] passive,
+				       Map<BitSet, double[][]> factorizations) {
+    final int n = Atb.length;
+    int numPassive = 0;
+    final int[] idx = new int[n];
+    final BitSet key = new BitSet(n);
+    for (int j = 0; j < n; j++) {
+      if (passive[j]) {
+	idx[numPassive++] = j;
+	key.set(j);
+      }
+    }
+
+    final double[] z = new double[n];
+    if (numPassive == 0) {
+      return z;
+    }
+
+    double[][] L = factorizations.get(key);
+    if (L == null) {
+      L = cholesky(AtA, idx, numPassive);
+      factorizations.put(key, L);
+    }
+
+    // Forward substitution L*y = rhs
+    final double[] y = new double[numPassive];
+    for (int i = 0; i < numPassive; i++) {
+      if (L[i][i] == 0) {
+	continue;
+      }
+      double sum = Atb[idx[i]];
+      for (int k = 0; k < i; k++) {
+	sum -= L[i][k] * y[k];
+      }
+      y[i] = sum / L[i][i];
+    }
+
+    // Backward substitution L^T*x = y
+    for (int i = numPassive - 1; i >= 0; i--) {
+      if (L[i][i] == 0) {
+	continue;
+      }
+      double sum = y[i];
+      for (int k = i + 1; k < numPassive; k++) {
+	sum -= L[k][i] * z[idx[k]];
+      }
+      z[idx[i]] = sum / L[i][i];
+    }
+    return z;
+  }
+
+  /**
+   * Cholesky factorization L*L^T of the symmetric positive semidefinite
+   * submatrix of the given rows and columns. Variables whose pivot vanishes
+   * (linearly dependent columns) get a zero column in L and are fixed to zero
+   * in the solution.
+   *
+   * @param M   Symmetric matrix
+   * @param idx Indices of the rows and columns of the submatrix
+   * @param n   Number of indices
+   * @return Lower triangular factor of shape n x n
+   */
+  private static double[][] cholesky(double[][] M, int[] idx, int n) {
+    double maxDiag = 0;
+    for (int i = 0; i < n; i++) {
+      maxDiag = Math.max(maxDiag, Math.abs(M[idx[i]][idx[i]]));
+    }
+    final double tol = 10 * Math.ulp(1.0) * maxDiag * n;
+
+    final double[][] L = new double[n][n];
+    for (int j = 0; j < n; j++) {
+      double d = M[idx[j]][idx[j]];
+      for (int k = 0; k < j; k++) {
+	d -= L[j][k] * L[j][k];
+      }
+      if (d <= tol) {
+	continue;
+      }
+      L[j][j] = Math.sqrt(d);
+      for (int i = j + 1; i < n; i++) {
+	double sum = M[idx[i]][idx[j]];
+	for (int k = 0; k < j; k++) {
+	  sum -= L[i][k] * L[j][k];
+	}
+	L[i][j] = sum / L[j][j];
+      }
+    }
+    return L;
+  }
+
+  /**
+   * Unimodal least squares regression: find the vector closest to y which is
+   * non-decreasing up to some peak and non-increasing afterwards. All split
+   * points are evaluated in linear time from the errors of the isotonic
+   * regressions of all prefixes and suffixes (pool adjacent violators).
+   *
+   * @param y Input vector
+   * @return Unimodal fit of y
+   */
+  public static double[] unimodalRegression(double[] y) {
+    final int n = y.length;
+    final double[] reversed = new double[n];
+    for (int i = 0; i < n; i++) {
+      reversed[i] = y[n - 1 - i];
+    }
+
+    // Errors of the increasing fits of y[0..k] and decreasing fits of y[k..n-1]
+    final double[] incErrors = isotonicPrefixErrors(y);
+    final double[] decErrors = isotonicPrefixErrors(reversed);
+
+    // Split into increasing y[0..split-1] and decreasing y[split..n-1]
+    int bestSplit = 0;
+    double bestError = Double.POSITIVE_INFINITY;
+    for (int split = 0; split <= n; split++) {
+      final double inc = split > 0 ? incErrors[split - 1] : 0;
+      final double dec = split < n ? decErrors[n - 1 - split] : 0;
+      if (inc + dec < bestError) {
+	bestError = inc + dec;
+	bestSplit = split;
+      }
+    }
+
+    final double[] fit = new double[n];
+    final double[] incFit = isotonicRegression(Arrays.copyOfRange(y, 0, bestSplit));
+    final double[] decFit = isotonicRegression(Arrays.copyOfRange(reversed, 0, n - bestSplit));
+    System.arraycopy(incFit, 0, fit, 0, bestSplit);
+    for (int i = 0; i < decFit.length; i++) {
+      fit[n - 1 - i] = decFit[i];
+    }
+    return fit;
+  }
+
+  /**
+   * Squared errors of the non-decreasing least squares fits of all prefixes
+   * y[0..k] of y.
+   *
+   * @param y Input vector
+   * @return Prefix errors
+   */
+  private static double[] isotonicPrefixErrors(double[] y) {
+    final int n = y.length;
+    final double[] errors = new double[n];
+    final double[] sums = new double[n];
+    final double[] sumSquares = new double[n];
+    final int[] counts = new int[n];
+    int numBlocks = 0;
+    double error = 0;
+    for (int k = 0; k < n; k++) {
+      // New block
+      sums[numBlocks] = y[k];
+      sumSquares[numBlocks] = y[k] * y[k];
+      counts[numBlocks] = 1;
+      numBlocks++;
+
+      // Pool adjacent violators
+      while (numBlocks > 1
+	&& sums[numBlocks - 2] / counts[numBlocks - 2] > sums[numBlocks - 1] / counts[numBlocks - 1]) {
+	final int b = numBlocks - 2;
+	error -= blockError(sums[b], sumSquares[b], counts[b]);
+	error -= blockError(sums[b + 1], sumSquares[b + 1], counts[b + 1]);
+	sums[b] += sums[b + 1];
+	sumSquares[b] += sumSquares[b + 1];
+	counts[b] += counts[b + 1];
+	numBlocks--;
+	error += blockError(sums[b], sumSquares[b], counts[b]);
+      }
+      errors[k] = error;
+    }
+    return errors;
+  }
+
+  /**
+   * Squared error of a block fitted by its mean.
+   *
+   * @param sum        Sum of the block values
+   * @param sumSquares Sum of the squared block values
+   * @param count      Number of block values
+   * @return Squared error
+   */
+  private static double blockError(double sum, double sumSquares, int count) {
+    return Math.max(sumSquares - sum * sum / count, 0);
+  }
+
+  /**
+   * Non-decreasing least squares fit of y (pool adjacent violators).
+   *
+   * @param y Input vector
+   * @return Isotonic fit of y
+   */
+  public static double[] isotonicRegression(double[] y) {
+    final int n = y.length;
+    final double[] means = new double[n];
+    final int[] counts = new int[n];
+    int numBlocks = 0;
+    for (double v : y) {
+      means[numBlocks] = v;
+      counts[numBlocks] = 1;
+      numBlocks++;
+      while (numBlocks > 1 && means[numBlocks - 2] > means[numBlocks - 1]) {
+	final int b = numBlocks - 2;
+	final int count = counts[b] + counts[b + 1];
+	means[b] = (means[b] * counts[b] + means[b + 1] * counts[b + 1]) / count;
+	counts[b] = count;
+	numBlocks--;
+      }
+    }
+
+    final double[] fit = new double[n];
+    int pos = 0;
+    for (int b = 0; b < numBlocks; b++) {
+      Arrays.fill(fit, pos, pos + counts[b], means[b]);
+      pos += counts[b];
+    }
+    return fit;
+  }
+
   /**
    * Check that all sizes of a given tensors are greater than zero.
    *
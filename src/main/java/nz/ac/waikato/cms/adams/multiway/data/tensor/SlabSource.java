@@ -0,0 +1,27 @@
+package nz.ac.waikato.cms.adams.multiway.data.tensor;
+
+/**
+ * Source of the slabs of a tensor along its first (sample) mode, i.e. the
+ * subtensors of consecutive samples. Allows algorithms to stream tensors that
+ * do not fit into memory in mini-batches.
+ *
+ * @author agent
+ */
+public interface SlabSource {
+
+  /**
+   * Get the shape of the full tensor.
+   *
+   * @return Shape, where the first dimension is the number of samples
+   */
+  long[] shape();
+
+  /**
+   * Get the slabs of the given range of samples.
+   *
+   * @param from First sample (inclusive)
+   * @param to   Last sample (exclusive)
+   * @return Tensor of shape ((to - from) x shape[1] x ... x shape[n-1])
+   */
+  Tensor getSlabs(int from, int to);
+}
@@ -0,0 +1,275 @@
+package nz.ac.waikato.cms.adams.multiway.data.tensor;
+
+import nz.ac.waikato.cms.adams.multiway.exceptions.InvalidInputException;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Sparse multiway tensor in coordinate (COO) format. Only the non-zero
+ * entries are stored, each as one index per mode and a value. Cells that are
+ * not stored are zero. The entries are sorted by their coordinates, where the
+ * values of duplicate coordinates are summed up on creation.
+ *
+ * @author agent
+ */
+public class SparseTensor implements Serializable {
+
+  /** Serial version UID */
+  private static final long serialVersionUID = -3650837913315470155L;
+
+  /** Shape of the tensor. */
+  protected long[] shape;
+
+  /** Indices of the stored entries, one array of length nnz per mode. */
+  protected int[][] indices;
+
+  /** Values of the stored entries. */
+  protected double[] values;
+
+  /** Generate a sparse tensor from coordinates. */
+  protected SparseTensor(int[][] indices, double[] values, long[] shape) {
+    if (indices.length != shape.length) {
+      throw new InvalidInputException(String.format(
+	"Number of index arrays (%d) does not match the order of the " +
+	  "shape %s.", indices.length, Arrays.toString(shape)));
+    }
+
+    for (int mode = 0; mode < shape.length; mode++) {
+      if (indices[mode].length != values.length) {
+	throw new InvalidInputException(String.format(
+	  "Number of indices in mode %d (%d) does not match the number " +
+	    "of values (%d).", mode, indices[mode].length, values.length));
+      }
+      for (int idx : indices[mode]) {
+	if (idx < 0 || idx >= shape[mode]) {
+	  throw new InvalidInputException(String.format(
+	    "Index %d in mode %d is out of bounds for shape %s.", idx,
+	    mode, Arrays.toString(shape)));
+	}
+      }
+    }
+
+    this.shape = shape.clone();
+    this.indices = new int[indices.length][];
+    for (int mode = 0; mode < indices.length; mode++) {
+      this.indices[mode] = indices[mode].clone();
+    }
+    this.values = values.clone();
+    mergeDuplicates();
+  }
+
+  /**
+   * Sort the entries by their coordinates and sum up the values of duplicate
+   * coordinates.
+   */
+  protected void mergeDuplicates() {
+    final int nnz = values.length;
+    boolean sortedUnique = true;
+    for (int i = 1; i < nnz && sortedUnique; i++) {
+      sortedUnique = compareCoordinates(i - 1, i) < 0;
+    }
+    if (sortedUnique) {
+      return;
+    }
+
+    final Integer[] order = new Integer[nnz];
+    for (int i = 0; i < nnz; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, this::compareCoordinates);
+
+    // Count the unique coordinates
+    int numUnique = nnz == 0 ? 0 : 1;
+    for (int i = 1; i < nnz; i++) {
+      if (compareCoordinates(order[i - 1], order[i]) != 0) {
+	numUnique++;
+      }
+    }
+
+    final int[][] mergedIndices = new int[shape.length][numUnique];
+    final double[] mergedValues = new double[numUnique];
+    int pos = -1;
+    for (int i = 0; i < nnz; i++) {
+      final int entry = order[i];
+      if (i == 0 || compareCoordinates(order[i - 1], entry) != 0) {
+	pos++;
+	for (int mode = 0; mode < shape.length; mode++) {
+	  mergedIndices[mode][pos] = indices[mode][entry];
+	}
+      }
+      mergedValues[pos] += values[entry];
+    }
+    indices = mergedIndices;
+    values = mergedValues;
+  }
+
+  /**
+   * Compare the coordinates of two entries lexicographically, with the first
+   * mode being the most significant.
+   *
+   * @param a First entry
+   * @param b Second entry
+   * @return Negative, zero or positive if the first coordinate is smaller,
+   * equal or greater
+   */
+  private int compareCoordinates(int a, int b) {
+    for (int[] modeIndices : indices) {
+      final int cmp = Integer.compare(modeIndices[a], modeIndices[b]);
+      if (cmp != 0) {
+	return cmp;
+      }
+    }
+    return 0;
+  }
+
+  /** Generate an empty sparse tensor, used to share coordinates. */
+  protected SparseTensor() {
+  }
+
+  /**
+   * Get the size of a certain dimension.
+   *
+   * @param dimension Dimension
+   * @return Size of the given dimension
+   */
+  public long size(int dimension) {
+    return shape[dimension];
+  }
+
+  /**
+   * Get the shape of this tensor.
+   *
+   * @return Shape
+   */
+  public long[] shape() {
+    return shape.clone();
+  }
+
+  /**
+   * Order of the tensor.
+   *
+   * @return Order of the tensor
+   */
+  public int order() {
+    return shape.length;
+  }
+
+  /**
+   * Number of stored entries, i.e. of unique coordinates.
+   *
+   * @return Number of stored entries
+   */
+  public int numNonZeros() {
+    return values.length;
+  }
+
+  /**
+   * Get the indices of the stored entries in the given mode. The returned
+   * array is not copied and must not be modified.
+   *
+   * @param mode Mode
+   * @return Indices of length {@link SparseTensor#numNonZeros()}
+   */
+  public int[] getIndices(int mode) {
+    return indices[mode];
+  }
+
+  /**
+   * Get the values of the stored entries. The returned array is not copied and
+   * must not be modified.
+   *
+   * @return Values of length {@link SparseTensor#numNonZeros()}
+   */
+  public double[] getValues() {
+    return values;
+  }
+
+  /**
+   * Create a sparse tensor with the same coordinates as this tensor but other
+   * values. The coordinates are shared, not copied.
+   *
+   * @param values Values of the entries
+   * @return Sparse tensor
+   */
+  public SparseTensor withValues(double[] values) {
+    if (values.length != this.values.length) {
+      throw new InvalidInputException(String.format(
+	"Number of values (%d) does not match the number of entries (%d).",
+	values.length, this.values.length));
+    }
+    final SparseTensor res = new SparseTensor();
+    res.shape = shape;
+    res.indices = indices;
+    res.values = values;
+    return res;
+  }
+
+  /**
+   * Squared Frobenius norm of this tensor.
+   *
+   * @return Sum of the squared values
+   */
+  public double squaredNorm() {
+    double sum = 0;
+    for (double v : values) {
+      sum += v * v;
+    }
+    return sum;
+  }
+
+  /**
+   * Convert this tensor into a dense tensor.
+   *
+   * @return Dense tensor
+   */
+  public Tensor toTensor() {
+    final INDArray data = Nd4j.zeros(shape);
+    final long[] idx = new long[shape.length];
+    for (int i = 0; i < values.length; i++) {
+      for (int mode = 0; mode < shape.length; mode++) {
+	idx[mode] = indices[mode][i];
+      }
+      data.putScalar(idx, values[i]);
+    }
+    return Tensor.create(data);
+  }
+
+  /**
+   * Create a sparse tensor from coordinates. The values of duplicate
+   * coordinates are summed up.
+   *
+   * @param indices Indices of the entries, one array per mode
+   * @param values  Values of the entries
+   * @param shape   Shape of the tensor
+   * @return Sparse tensor
+   */
+  public static SparseTensor create(int[][] indices, double[] values, long[] shape) {
+    return new SparseTensor(indices, values, shape);
+  }
+
+  /**
+   * Create a sparse tensor from coordinates. The shape is derived from the
+   * largest index in each mode. The values of duplicate coordinates are summed
+   * up.
+   *
+   * @param indices Indices of the entries, one array per mode
+   * @param values  Values of the entries
+   * @return Sparse tensor
+   */
+  public static SparseTensor create(int[][] indices, double[] values) {
+    final long[] shape = new long[indices.length];
+    for (int mode = 0; mode < indices.length; mode++) {
+      shape[mode] = Arrays.stream(indices[mode]).max().orElse(-1) + 1;
+    }
+    return new SparseTensor(indices, values, shape);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("SparseTensor(shape=%s, nnz=%d)",
+      Arrays.toString(shape), values.length);
+  }
+}
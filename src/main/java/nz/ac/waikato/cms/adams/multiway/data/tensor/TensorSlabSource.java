@@ -0,0 +1,40 @@
+package nz.ac.waikato.cms.adams.multiway.data.tensor;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * Slab source that serves the slabs of a tensor in memory.
+ *
+ * @author agent
+ */
+public class TensorSlabSource implements SlabSource {
+
+  /** Underlying data. */
+  protected INDArray data;
+
+  /**
+   * Create a slab source of the given tensor.
+   *
+   * @param tensor Tensor
+   */
+  public TensorSlabSource(Tensor tensor) {
+    this.data = tensor.getData();
+  }
+
+  @Override
+  public long[] shape() {
+    return data.shape();
+  }
+
+  @Override
+  public Tensor getSlabs(int from, int to) {
+    final INDArrayIndex[] indices = new INDArrayIndex[data.rank()];
+    indices[0] = NDArrayIndex.interval(from, to);
+    for (int i = 1; i < indices.length; i++) {
+      indices[i] = NDArrayIndex.all();
+    }
+    return Tensor.create(data.get(indices));
+  }
+}
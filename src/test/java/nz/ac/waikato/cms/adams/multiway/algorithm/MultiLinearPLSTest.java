@@ -9,11 +9,18 @@ import nz.ac.waikato.cms.adams.multiway.data.DataReader;
 import nz.ac.waikato.cms.adams.multiway.data.MathUtils;
 import nz.ac.waikato.cms.adams.multiway.data.tensor.Tensor;
 import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
 
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
 
 /**
  * {@link MultiLinearPLS} algorithm testcase.
@@ -52,6 +59,24 @@ public class MultiLinearPLSTest extends
     assertEquals(F, filter.size(1));
   }
 
+  @Test
+  public void signConvention() {
+    final Tensor X = TestUtils.generateRandomTensor(10, 5, 3);
+    final Tensor Y = TestUtils.generateRandomMatrix(10, 2);
+    MultiLinearPLS mpls = new MultiLinearPLS();
+    mpls.setNumComponents(3);
+    mpls.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(mpls.build(X, Y));
+
+    // The entry of w^J with the largest magnitude is positive
+    final INDArray Wj = mpls.getLoadingMatrices().get("Wj").getData();
+    for (int a = 0; a < Wj.size(1); a++) {
+      final INDArray wj = Wj.getColumn(a);
+      final double maxAbs = wj.amaxNumber().doubleValue();
+      assertEquals(maxAbs, wj.maxNumber().doubleValue(), 1e-12);
+    }
+  }
+
   @Test
   public void predict() throws IOException {
     String xpath = "src/test/resources/data/regression/supervised/synthetic/X-threeway.csv";
@@ -73,6 +98,159 @@ public class MultiLinearPLSTest extends
       "a working implementation", mse < 1d);
   }
 
+  @Test
+  public void singleTarget() {
+    final int F = 4;
+    final Tensor X = TestUtils.generateRandomTensor(20, 5, 3);
+    final Tensor Y = TestUtils.generateRandomMatrix(20, 1);
+    MultiLinearPLS mpls = new MultiLinearPLS();
+    mpls.setNumComponents(F);
+    final String err = mpls.build(X, Y);
+    assertTrue("Error was: " + err, err == null);
+
+    final Tensor Ypred = mpls.predict(X);
+    assertEquals(20, Ypred.size(0));
+    assertEquals(1, Ypred.size(1));
+    assertFalse(Double.isNaN(Ypred.getData().sumNumber().doubleValue()));
+    assertEquals(F, mpls.getLoadingMatrices().get("T").size(1));
+
+    // The closed form matches the NIPALS loop on the duplicated target
+    final Tensor Y2 = Tensor.create(Nd4j.hstack(Y.getData(), Y.getData()));
+    MultiLinearPLS iterative = new MultiLinearPLS();
+    iterative.setNumComponents(F);
+    assertNull(iterative.build(X, Y2));
+    final INDArray Y2pred = iterative.predict(X).getData();
+    for (int target = 0; target < 2; target++) {
+      assertTrue(Ypred.getData().equalsWithEps(
+	Y2pred.get(all(), interval(target, target + 1)), 1e-4));
+    }
+  }
+
+  @Test
+  public void update() {
+    final Tensor X = TestUtils.generateRandomTensor(30, 5, 3);
+    final Tensor Y = TestUtils.generateRandomMatrix(30, 2);
+
+    // Two batches with all samples weighted equally
+    MultiLinearPLS recursive = new MultiLinearPLS();
+    recursive.setNumComponents(3);
+    for (int from = 0; from < 30; from += 15) {
+      final Tensor xBatch = Tensor.create(X.getData().get(interval(from, from + 15), all(), all()).dup());
+      final Tensor yBatch = Tensor.create(Y.getData().get(interval(from, from + 15), all()).dup());
+      assertNull(recursive.update(xBatch, yBatch));
+    }
+
+    // One batch with all samples
+    MultiLinearPLS single = new MultiLinearPLS();
+    single.setNumComponents(3);
+    assertNull(single.update(X, Y));
+
+    assertTrue(single.predict(X).equalsWithEps(recursive.predict(X), 1e-4));
+    assertEquals(30, single.getLoadingMatrices().get("T").size(0));
+    assertEquals(15, recursive.getLoadingMatrices().get("T").size(0));
+
+    // Batches with a different shape are rejected
+    assertNotNull(recursive.update(TestUtils.generateRandomTensor(5, 4, 3), TestUtils.generateRandomMatrix(5, 2)));
+  }
+
+  @Test
+  public void updateMatchesBuild() {
+    // Centered input and standardized target, where the batch build does not
+    // differ from the recursive model in the first component
+    final Tensor X = MathUtils.center(TestUtils.generateRandomTensor(30, 5, 3), 0);
+    INDArray y = MathUtils.center(TestUtils.generateRandomMatrix(30, 1).getData(), 0);
+    y = y.divRowVector(y.std(0));
+    final Tensor Y = Tensor.create(y);
+
+    MultiLinearPLS batch = new MultiLinearPLS();
+    batch.setNumComponents(3);
+    assertNull(batch.build(X, Y));
+
+    MultiLinearPLS recursive = new MultiLinearPLS();
+    recursive.setNumComponents(3);
+    assertNull(recursive.update(X, Y));
+
+    assertTrue(batch.predict(X).equalsWithEps(recursive.predict(X), 1e-5));
+  }
+
+  @Test
+  public void updateAfterBuild() {
+    final Tensor X = TestUtils.generateRandomTensor(30, 5, 3);
+    final Tensor Y = TestUtils.generateRandomMatrix(30, 2);
+    final Tensor X1 = Tensor.create(X.getData().get(interval(0, 20), all(), all()).dup());
+    final Tensor Y1 = Tensor.create(Y.getData().get(interval(0, 20), all()).dup());
+    final Tensor X2 = Tensor.create(X.getData().get(interval(20, 30), all(), all()).dup());
+    final Tensor Y2 = Tensor.create(Y.getData().get(interval(20, 30), all()).dup());
+
+    // The update continues from the statistics of the build
+    MultiLinearPLS continued = new MultiLinearPLS();
+    continued.setNumComponents(3);
+    continued.setKeepStatistics(true);
+    assertNull(continued.build(X1, Y1));
+    assertNull(continued.update(X2, Y2));
+
+    MultiLinearPLS single = new MultiLinearPLS();
+    single.setNumComponents(3);
+    assertNull(single.update(X, Y));
+
+    assertTrue(single.predict(X).equalsWithEps(continued.predict(X), 1e-4));
+  }
+
+  @Test
+  public void buildKeepsNoStatisticsByDefault() {
+    final Tensor X = TestUtils.generateRandomTensor(20, 5, 3);
+    final Tensor Y = TestUtils.generateRandomMatrix(20, 2);
+
+    MultiLinearPLS mpls = new MultiLinearPLS();
+    mpls.setNumComponents(2);
+    assertNull(mpls.build(X, Y));
+    assertNull(mpls.crossXX);
+    assertNull(mpls.crossXY);
+
+    mpls.setKeepStatistics(true);
+    assertNull(mpls.build(X, Y));
+    assertEquals(15, mpls.crossXX.size(0));
+    assertEquals(15, mpls.crossXX.size(1));
+  }
+
+  @Test
+  public void updateSingleSamples() {
+    // Large offsets must not cancel the variance, single samples must not
+    // lead to undefined standard deviations
+    final Tensor X = Tensor.create(TestUtils.generateRandomTensor(20, 5, 3).getData().add(1e4));
+    final Tensor Y = Tensor.create(TestUtils.generateRandomMatrix(20, 1).getData().add(1e4));
+
+    MultiLinearPLS stream = new MultiLinearPLS();
+    stream.setNumComponents(2);
+    for (int i = 0; i < 20; i++) {
+      final Tensor xSample = Tensor.create(X.getData().get(interval(i, i + 1), all(), all()).dup());
+      final Tensor ySample = Tensor.create(Y.getData().get(interval(i, i + 1), all()).dup());
+      assertNull(stream.update(xSample, ySample));
+      assertFalse(Double.isNaN(stream.predict(X).getData().sumNumber().doubleValue()));
+    }
+
+    MultiLinearPLS single = new MultiLinearPLS();
+    single.setNumComponents(2);
+    assertNull(single.update(X, Y));
+    assertTrue(single.predict(X).equalsWithEps(stream.predict(X), 1e-4));
+  }
+
+  @Test
+  public void updateForgetting() {
+    final Tensor X = TestUtils.generateRandomTensor(20, 5, 3);
+    final Tensor Y = TestUtils.generateRandomMatrix(20, 1);
+    MultiLinearPLS mpls = new MultiLinearPLS();
+    mpls.setNumComponents(2);
+    mpls.setForgettingFactor(0.5);
+    assertNull(mpls.update(X, Y));
+    assertNull(mpls.update(X, Y));
+
+    final Tensor Ypred = mpls.predict(X);
+    assertEquals(20, Ypred.size(0));
+    assertEquals(1, Ypred.size(1));
+    assertFalse(Double.isNaN(Ypred.getData().sumNumber().doubleValue()));
+  }
+
   @Override
   protected MultiLinearPLS constructAlgorithm() {
     return new MultiLinearPLS();
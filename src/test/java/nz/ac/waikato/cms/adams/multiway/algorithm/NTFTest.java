@@ -1,23 +1,34 @@
 package nz.ac.waikato.cms.adams.multiway.algorithm;
 
 import nz.ac.waikato.cms.adams.multiway.TestUtils;
+import nz.ac.waikato.cms.adams.multiway.algorithm.NTF.DIVERGENCE_TYPE;
 import nz.ac.waikato.cms.adams.multiway.algorithm.NTF.GRADIENT_UPDATE_TYPE;
+import nz.ac.waikato.cms.adams.multiway.algorithm.NTF.INITIALIZATION_TYPE;
 import nz.ac.waikato.cms.adams.multiway.algorithm.api.AbstractAlgorithm;
 import nz.ac.waikato.cms.adams.multiway.algorithm.regression.NTFRegressionTestManager;
 import nz.ac.waikato.cms.adams.multiway.algorithm.regression.RegressionTestManager;
 import nz.ac.waikato.cms.adams.multiway.algorithm.stopping.CriterionUtils;
+import nz.ac.waikato.cms.adams.multiway.data.tensor.SparseTensor;
 import nz.ac.waikato.cms.adams.multiway.data.tensor.Tensor;
+import nz.ac.waikato.cms.adams.multiway.data.tensor.TensorSlabSource;
+import nz.ac.waikato.cms.adams.multiway.exceptions.ModelNotBuiltException;
 import org.junit.Before;
 import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.conditions.Conditions;
 import org.nd4j.linalg.learning.config.Adam;
 import org.nd4j.linalg.learning.config.Sgd;
 import org.nd4j.linalg.ops.transforms.Transforms;
 
+import java.util.List;
+import java.util.Random;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class NTFTest extends AbstractUnsupervisedAlgorithmTest<NTF> {
 
@@ -46,6 +57,46 @@ public class NTFTest extends AbstractUnsupervisedAlgorithmTest<NTF> {
     runWithUpdateType(GRADIENT_UPDATE_TYPE.NORMALIZED_UPDATE);
   }
 
+  @Test
+  public void testCustomStepUpdaterMatchesElementWiseStep() {
+    final Adam adam = new Adam.Builder().learningRate(0.01).build();
+    ntf.setNumComponents(2);
+    ntf.setGradientUpdateType(GRADIENT_UPDATE_TYPE.STEP_UPDATE_CUSTOM);
+    ntf.setUpdater(adam);
+    ntf.addStoppingCriterion(CriterionUtils.iterations(1));
+    assertNull(ntf.build(TestUtils.generateRandomTensor(6, 4, 5)));
+
+    // Fresh updater states, i.e. the first Adam step of each value
+    ntf.initializeGradientManager();
+    final int mode = 0;
+    final INDArray nominator = ntf.getUpdateRuleNominator(mode);
+    final INDArray gramProduct = ntf.getGramProduct(mode);
+    final double alpha = adam.getLearningRate()
+      * Math.sqrt(1 - adam.getBeta2()) / (1 - adam.getBeta1());
+    for (int component = 0; component < 2; component++) {
+      final double[][] u = ntf.decomposition[mode].toDoubleMatrix();
+      final double[][] nom = nominator.toDoubleMatrix();
+      final double[][] gp = gramProduct.toDoubleMatrix();
+      final double[] expected = new double[u.length];
+      for (int row = 0; row < u.length; row++) {
+	double g = -nom[row][component];
+	for (int j = 0; j < 2; j++) {
+	  g += u[row][j] * gp[j][component];
+	}
+	final double m = (1 - adam.getBeta1()) * g;
+	final double v = (1 - adam.getBeta2()) * g * g;
+	final double step = alpha * m / (Math.sqrt(v) + adam.getEpsilon());
+	expected[row] = Math.max(u[row][component] - step, 0);
+      }
+
+      ntf.updateDecompositionComponentCustomUpdater(mode, component, nominator, gramProduct);
+      final INDArray actual = ntf.decomposition[mode].getColumn(component);
+      for (int row = 0; row < expected.length; row++) {
+	assertEquals(expected[row], actual.getDouble(row), 1e-5);
+      }
+    }
+  }
+
   private void runWithUpdateType(GRADIENT_UPDATE_TYPE iterationUpdateCustom) {
     int[] shape = {2, 3, 4, 5};
     Tensor X = TestUtils.generateRangeTensor(shape);
@@ -77,6 +128,313 @@ public class NTFTest extends AbstractUnsupervisedAlgorithmTest<NTF> {
     assertEquals(numComponents, decomp[2].size(1));
   }
 
+  @Test
+  public void testLossMatchesReconstruction() {
+    Tensor X = TestUtils.generateRandomTensor(6, 4, 5);
+    for (GRADIENT_UPDATE_TYPE type : GRADIENT_UPDATE_TYPE.values()) {
+      NTF ntf = new NTF();
+      ntf.setNumComponents(3);
+      ntf.setGradientUpdateType(type);
+      ntf.addStoppingCriterion(CriterionUtils.iterations(5));
+      assertNull(ntf.build(X));
+
+      final double expected = X.getData().squaredDistance(ntf.getReconstruction());
+      assertEquals(expected, ntf.getLoss(), expected * 1e-4);
+    }
+  }
+
+  @Test
+  public void testDivergences() {
+    Tensor X = TestUtils.generateRandomTensor(6, 4, 5);
+    for (DIVERGENCE_TYPE type : DIVERGENCE_TYPE.values()) {
+      NTF ntf = new NTF();
+      ntf.setNumComponents(3);
+      ntf.setDivergenceType(type);
+      ntf.setBeta(0.5);
+      ntf.addStoppingCriterion(CriterionUtils.iterations(1));
+      assertNull(ntf.build(X));
+      final double lossStart = ntf.getLoss();
+
+      ntf.addStoppingCriterion(CriterionUtils.iterations(20));
+      assertNull(ntf.build(X));
+      assertTrue(ntf.getLoss() < lossStart);
+      assertFalse(ntf.checkDecompositionForNegativeValues());
+    }
+  }
+
+  @Test
+  public void testSparseKullbackLeibler() {
+    final int[][] indices = {{0, 1, 3, 3, 4, 2}, {2, 0, 1, 1, 3, 2}, {1, 0, 2, 0, 1, 1}};
+    final double[] values = {1, 2, 1, 3, 1, 4};
+    final SparseTensor sparse = SparseTensor.create(indices, values, new long[]{5, 4, 3});
+
+    NTF sparseNtf = new NTF();
+    sparseNtf.setNumComponents(2);
+    sparseNtf.setDivergenceType(DIVERGENCE_TYPE.KULLBACK_LEIBLER);
+    sparseNtf.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(sparseNtf.build(sparse));
+
+    NTF denseNtf = new NTF();
+    denseNtf.setNumComponents(2);
+    denseNtf.setDivergenceType(DIVERGENCE_TYPE.KULLBACK_LEIBLER);
+    denseNtf.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(denseNtf.build(sparse.toTensor()));
+
+    assertEquals(denseNtf.getLoss(), sparseNtf.getLoss(), 1e-3);
+    final Tensor[] sparseDecomp = sparseNtf.getDecomposition();
+    final Tensor[] denseDecomp = denseNtf.getDecomposition();
+    for (int mode = 0; mode < 3; mode++) {
+      assertTrue(denseDecomp[mode].equalsWithEps(sparseDecomp[mode], 1e-3));
+    }
+  }
+
+  @Test
+  public void testItakuraSaitoRejectsZeros() {
+    Tensor x = Tensor.create(Nd4j.create(new double[][]{{0, 1}, {1, 5}}));
+    NTF ntf = new NTF();
+    ntf.setDivergenceType(DIVERGENCE_TYPE.ITAKURA_SAITO);
+    assertNotNull(ntf.build(x));
+  }
+
+  @Test(expected = ModelNotBuiltException.class)
+  public void testFilterUnbuiltModel() {
+    ntf.filter(Tensor.create(1));
+  }
+
+  @Test
+  public void testFilter() {
+    Tensor X = TestUtils.generateRandomTensor(8, 4, 5);
+    for (DIVERGENCE_TYPE type : new DIVERGENCE_TYPE[]{DIVERGENCE_TYPE.FROBENIUS, DIVERGENCE_TYPE.KULLBACK_LEIBLER}) {
+      NTF ntf = new NTF();
+      ntf.setNumComponents(3);
+      ntf.setDivergenceType(type);
+      ntf.addStoppingCriterion(CriterionUtils.iterations(50));
+      assertNull(ntf.build(X));
+
+      final Tensor transformed = ntf.filter(TestUtils.generateRandomTensor(3, 4, 5));
+      assertEquals(2, transformed.order());
+      assertEquals(3, transformed.size(0));
+      assertEquals(3, transformed.size(1));
+      assertFalse(transformed.getData().cond(Conditions.lessThan(0)).any());
+    }
+  }
+
+  @Test
+  public void testFilterReproducesTrainingDecomposition() {
+    // Non-negative tensor of rank two
+    final Random rng = new Random(0);
+    final double[][][] data = new double[8][4][5];
+    final double[][][] factors = {new double[8][2], new double[4][2], new double[5][2]};
+    for (double[][] factor : factors) {
+      for (double[] row : factor) {
+	for (int f = 0; f < 2; f++) {
+	  row[f] = 0.1 + rng.nextDouble();
+	}
+      }
+    }
+    for (int i = 0; i < 8; i++) {
+      for (int j = 0; j < 4; j++) {
+	for (int k = 0; k < 5; k++) {
+	  for (int f = 0; f < 2; f++) {
+	    data[i][j][k] += factors[0][i][f] * factors[1][j][f] * factors[2][k][f];
+	  }
+	}
+      }
+    }
+    final Tensor X = Tensor.create(data);
+
+    for (DIVERGENCE_TYPE type : new DIVERGENCE_TYPE[]{DIVERGENCE_TYPE.FROBENIUS, DIVERGENCE_TYPE.KULLBACK_LEIBLER}) {
+      NTF ntf = new NTF();
+      ntf.setNumComponents(2);
+      ntf.setDivergenceType(type);
+      ntf.setNumFilterIterations(2000);
+      ntf.addStoppingCriterion(CriterionUtils.iterations(2000));
+      assertNull(ntf.build(X));
+
+      final INDArray expected = ntf.getDecomposition()[0].getData();
+      final INDArray transformed = ntf.filter(X).getData().castTo(expected.dataType());
+      final double error = transformed.distance2(expected) / expected.norm2Number().doubleValue();
+      assertTrue(type + ": relative error was " + error, error < 1e-2);
+    }
+  }
+
+  @Test
+  public void testInitializations() {
+    Tensor X = TestUtils.generateRandomTensor(6, 4, 5);
+    for (INITIALIZATION_TYPE type : INITIALIZATION_TYPE.values()) {
+      NTF ntf = new NTF();
+      ntf.setNumComponents(3);
+      ntf.setInitializationType(type);
+      ntf.addStoppingCriterion(CriterionUtils.iterations(5));
+      assertNull(ntf.build(X));
+      assertFalse(ntf.checkDecompositionForNegativeValues());
+      assertEquals(6, ntf.getDecomposition()[0].size(0));
+      assertEquals(3, ntf.getDecomposition()[0].size(1));
+    }
+  }
+
+  @Test
+  public void testParallelStartsMatchSequential() {
+    Tensor X = TestUtils.generateRandomTensor(6, 4, 5);
+
+    NTF sequential = new NTF();
+    sequential.setNumComponents(3);
+    sequential.setNumStarts(3);
+    sequential.addStoppingCriterion(CriterionUtils.improvement(1e-8));
+    sequential.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(sequential.build(X));
+
+    NTF parallel = new NTF();
+    parallel.setNumComponents(3);
+    parallel.setNumStarts(3);
+    parallel.setNumThreads(3);
+    parallel.addStoppingCriterion(CriterionUtils.improvement(1e-8));
+    parallel.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(parallel.build(X));
+
+    assertEquals(3, parallel.getLossHistory().size());
+    assertEquals(sequential.getLossHistory(), parallel.getLossHistory());
+    final Tensor[] sequentialDecomp = sequential.getDecomposition();
+    final Tensor[] parallelDecomp = parallel.getDecomposition();
+    for (int mode = 0; mode < 3; mode++) {
+      assertEquals(sequentialDecomp[mode], parallelDecomp[mode]);
+    }
+  }
+
+  @Test
+  public void testLossHistoryOnRebuild() {
+    Tensor X = TestUtils.generateRandomTensor(6, 4, 5);
+
+    NTF ntf = new NTF();
+    ntf.setNumComponents(3);
+    ntf.setNumStarts(2);
+    ntf.addStoppingCriterion(CriterionUtils.iterations(5));
+    assertNull(ntf.build(X));
+    assertNull(ntf.build(X));
+
+    // Histories of the previous build are discarded, the starts are recorded
+    assertEquals(2, ntf.getLossHistory().size());
+    for (int start = 0; start < 2; start++) {
+      assertEquals(5, ntf.getLossHistory().get(start).size());
+    }
+  }
+
+  @Test
+  public void testParallelMatchesSequential() {
+    Tensor X = TestUtils.generateRandomTensor(9, 4, 5);
+
+    NTF sequential = new NTF();
+    sequential.setNumComponents(3);
+    sequential.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(sequential.build(X));
+
+    NTF parallel = new NTF();
+    parallel.setNumComponents(3);
+    parallel.setNumThreads(4);
+    parallel.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(parallel.build(X));
+
+    assertEquals(sequential.getLoss(), parallel.getLoss(), 0.0);
+    final Tensor[] sequentialDecomp = sequential.getDecomposition();
+    final Tensor[] parallelDecomp = parallel.getDecomposition();
+    for (int mode = 0; mode < 3; mode++) {
+      assertEquals(sequentialDecomp[mode], parallelDecomp[mode]);
+    }
+  }
+
+  @Test
+  public void testSparseBuild() {
+    final int[][] indices = {{0, 1, 3, 3, 4, 2}, {2, 0, 1, 1, 3, 2}, {1, 0, 2, 0, 1, 1}};
+    final double[] values = {1.5, 2.0, 0.5, 3.0, 1.0, 4.0};
+    final SparseTensor sparse = SparseTensor.create(indices, values, new long[]{5, 4, 3});
+
+    NTF sparseNtf = new NTF();
+    sparseNtf.setNumComponents(2);
+    sparseNtf.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(sparseNtf.build(sparse));
+
+    NTF denseNtf = new NTF();
+    denseNtf.setNumComponents(2);
+    denseNtf.addStoppingCriterion(CriterionUtils.iterations(10));
+    assertNull(denseNtf.build(sparse.toTensor()));
+
+    assertEquals(denseNtf.getLoss(), sparseNtf.getLoss(), 1e-4);
+    final Tensor[] sparseDecomp = sparseNtf.getDecomposition();
+    final Tensor[] denseDecomp = denseNtf.getDecomposition();
+    for (int mode = 0; mode < 3; mode++) {
+      assertTrue(denseDecomp[mode].equalsWithEps(sparseDecomp[mode], 1e-4));
+    }
+  }
+
+  @Test
+  public void testSparseDuplicateCoordinates() {
+    // The coordinate (3, 1, 2) occurs twice
+    final int[][] indices = {{0, 1, 3, 3, 4, 3}, {2, 0, 1, 1, 3, 1}, {1, 0, 2, 0, 1, 2}};
+    final double[] values = {1.5, 2.0, 0.5, 3.0, 1.0, 4.0};
+    final SparseTensor sparse = SparseTensor.create(indices, values, new long[]{5, 4, 3});
+
+    for (DIVERGENCE_TYPE type : new DIVERGENCE_TYPE[]{DIVERGENCE_TYPE.FROBENIUS, DIVERGENCE_TYPE.KULLBACK_LEIBLER}) {
+      NTF sparseNtf = new NTF();
+      sparseNtf.setNumComponents(2);
+      sparseNtf.setDivergenceType(type);
+      sparseNtf.addStoppingCriterion(CriterionUtils.iterations(10));
+      assertNull(sparseNtf.build(sparse));
+
+      NTF denseNtf = new NTF();
+      denseNtf.setNumComponents(2);
+      denseNtf.setDivergenceType(type);
+      denseNtf.addStoppingCriterion(CriterionUtils.iterations(10));
+      assertNull(denseNtf.build(sparse.toTensor()));
+
+      assertEquals(denseNtf.getLoss(), sparseNtf.getLoss(), 1e-3);
+    }
+  }
+
+  @Test
+  public void testStochasticBuild() {
+    Tensor X = TestUtils.generateRandomTensor(25, 4, 5);
+
+    NTF ntf = new NTF();
+    ntf.setNumComponents(3);
+    ntf.setBatchSize(10);
+    ntf.setUpdater(new Adam.Builder().learningRate(0.01).build());
+    ntf.setDebug(true);
+    ntf.addStoppingCriterion(CriterionUtils.iterations(5));
+    assertNull(ntf.build(new TensorSlabSource(X)));
+
+    final Tensor[] decomp = ntf.getDecomposition();
+    for (int mode = 0; mode < 3; mode++) {
+      assertEquals(X.size(mode), decomp[mode].size(0));
+      assertEquals(3, decomp[mode].size(1));
+      assertEquals(0, decomp[mode].getData().cond(Conditions.lessThan(0)).sumNumber().intValue());
+    }
+    assertEquals(5, ntf.getLossHistory().get(0).size());
+  }
+
+  @Test
+  public void testStochasticLossDecreases() {
+    Tensor X = TestUtils.generateRandomTensor(25, 4, 5);
+
+    NTF ntf = new NTF();
+    ntf.setNumComponents(3);
+    ntf.setBatchSize(10);
+    ntf.setUpdater(new Adam.Builder().learningRate(0.01).build());
+    ntf.setDebug(true);
+    ntf.addStoppingCriterion(CriterionUtils.iterations(20));
+    assertNull(ntf.build(new TensorSlabSource(X)));
+
+    final List<Double> losses = ntf.getLossHistory().get(0);
+    assertEquals(20, losses.size());
+    assertTrue(losses.get(losses.size() - 1) < losses.get(0));
+  }
+
+  @Test
+  public void testStochasticRejectsDivergences() {
+    NTF ntf = new NTF();
+    ntf.setDivergenceType(DIVERGENCE_TYPE.KULLBACK_LEIBLER);
+    assertNotNull(ntf.build(new TensorSlabSource(TestUtils.generateRandomTensor(5, 4, 3))));
+  }
+
   @Override
   protected NTF constructAlgorithm() {
     return new NTF();
@@ -1,7 +1,11 @@
 package nz.ac.waikato.cms.adams.multiway.algorithm;
 
 import nz.ac.waikato.cms.adams.multiway.TestUtils;
+import nz.ac.waikato.cms.adams.multiway.algorithm.PARAFAC.Acceleration;
+import nz.ac.waikato.cms.adams.multiway.algorithm.PARAFAC.Constraint;
 import nz.ac.waikato.cms.adams.multiway.algorithm.PARAFAC.Initialization;
+import nz.ac.waikato.cms.adams.multiway.algorithm.PARAFAC.MissingValueHandling;
+import nz.ac.waikato.cms.adams.multiway.algorithm.PARAFAC.Solver;
 import nz.ac.waikato.cms.adams.multiway.algorithm.api.AbstractAlgorithm;
 import nz.ac.waikato.cms.adams.multiway.algorithm.regression.PARAFACRegressionTestManager;
 import nz.ac.waikato.cms.adams.multiway.algorithm.regression.RegressionTestManager;
@@ -11,14 +15,22 @@ import nz.ac.waikato.cms.adams.multiway.data.tensor.Tensor;
 import nz.ac.waikato.cms.adams.multiway.exceptions.ModelNotBuiltException;
 import org.junit.Before;
 import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
 
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * {@link PARAFAC} algorithm testcase.
@@ -76,6 +88,421 @@ public class PARAFACTest extends AbstractUnsupervisedAlgorithmTest<PARAFAC> {
     lossHistory.forEach(h -> assertEquals(maxIter, h.size()));
   }
 
+  @Test
+  public void testParallelStarts() {
+    final Tensor data = TestUtils.generateRandomTensor(I, J, K);
+    pf.setNumThreads(numStarts);
+    pf.build(data);
+    final List<List<Double>> lossHistory = pf.getLossHistory();
+
+    assertEquals(numStarts, lossHistory.size());
+    lossHistory.forEach(h -> assertEquals(maxIter, h.size()));
+    assertEquals(3, pf.getLoadingMatrices().size());
+
+    // The parallel starts match the sequential ones
+    final PARAFAC sequential = new PARAFAC();
+    sequential.setNumComponents(numComponents);
+    sequential.setNumStarts(numStarts);
+    sequential.setInitMethod(Initialization.RANDOM);
+    sequential.addStoppingCriterion(CriterionUtils.iterations(maxIter));
+    sequential.build(data);
+
+    assertEquals(sequential.getLossHistory(), lossHistory);
+    final Map<String, Tensor> sequentialLoadings = sequential.getLoadingMatrices();
+    final Map<String, Tensor> parallelLoadings = pf.getLoadingMatrices();
+    for (String name : sequentialLoadings.keySet()) {
+      assertEquals(sequentialLoadings.get(name), parallelLoadings.get(name));
+    }
+  }
+
+  @Test
+  public void testLineSearch() {
+    pf.setAcceleration(Acceleration.LINE_SEARCH);
+    pf.build(TestUtils.generateRandomTensor(I, J, K));
+    final List<List<Double>> lossHistory = pf.getLossHistory();
+
+    assertEquals(numStarts, lossHistory.size());
+    for (List<Double> h : lossHistory) {
+      // One entry per iteration plus one per accepted extrapolation
+      assertTrue(h.size() >= maxIter);
+      for (int i = 1; i < h.size(); i++) {
+	assertTrue(h.get(i) <= h.get(i - 1) + 1e-8);
+      }
+    }
+  }
+
+  @Test
+  public void testLineSearchConvergesFaster() {
+    // Two nearly collinear components in two modes: plain ALS runs into a swamp
+    final Random rng = new Random(1);
+    final double[][] A = randomCollinearMatrix(rng, 8, 0.1);
+    final double[][] B = randomCollinearMatrix(rng, 8, 0.1);
+    final double[][] C = randomCollinearMatrix(rng, 8, 1.0);
+    final double[][][] data = lowRankTensor(A, B, C);
+    for (double[][] slice : data) {
+      for (double[] row : slice) {
+	for (int k = 0; k < row.length; k++) {
+	  row[k] += 0.01 * rng.nextGaussian();
+	}
+      }
+    }
+
+    final List<Double> plain = buildUntilConverged(Acceleration.NONE, Tensor.create(data));
+    final List<Double> accelerated = buildUntilConverged(Acceleration.LINE_SEARCH, Tensor.create(data));
+
+    // The history of the line search contains all its iterations and the
+    // accepted extrapolations, i.e. it bounds the number of its iterations
+    assertTrue(accelerated.size() < 0.75 * plain.size());
+    final double plainLoss = plain.get(plain.size() - 1);
+    final double acceleratedLoss = accelerated.get(accelerated.size() - 1);
+    assertEquals(plainLoss, acceleratedLoss, plainLoss * 1e-2);
+  }
+
+  /**
+   * Build a single start two component model with the given acceleration until
+   * the relative improvement vanishes.
+   *
+   * @param acceleration Acceleration method
+   * @param data         Input
+   * @return Loss history
+   */
+  private static List<Double> buildUntilConverged(Acceleration acceleration, Tensor data) {
+    final PARAFAC model = new PARAFAC();
+    model.setNumComponents(2);
+    model.setInitMethod(Initialization.RANDOM);
+    model.setAcceleration(acceleration);
+    model.addStoppingCriterion(CriterionUtils.iterations(5000));
+    model.addStoppingCriterion(CriterionUtils.improvement(1e-5));
+    assertNull(model.build(data));
+    return model.getLossHistory().get(0);
+  }
+
+  /**
+   * Generate a matrix with two gaussian columns, where the second column
+   * deviates from the first by the given scale.
+   *
+   * @param rng       Random number generator
+   * @param numRows   Number of rows
+   * @param deviation Scale of the deviation of the second column
+   * @return Matrix
+   */
+  private static double[][] randomCollinearMatrix(Random rng, int numRows, double deviation) {
+    final double[][] M = new double[numRows][2];
+    for (double[] row : M) {
+      row[0] = rng.nextGaussian();
+      row[1] = row[0] + deviation * rng.nextGaussian();
+    }
+    return M;
+  }
+
+  /**
+   * Compose a three-way tensor from its loading matrices.
+   *
+   * @param A Loading matrix of the first mode
+   * @param B Loading matrix of the second mode
+   * @param C Loading matrix of the third mode
+   * @return Tensor data
+   */
+  private static double[][][] lowRankTensor(double[][] A, double[][] B, double[][] C) {
+    final double[][][] data = new double[A.length][B.length][C.length];
+    for (int i = 0; i < A.length; i++) {
+      for (int j = 0; j < B.length; j++) {
+	for (int k = 0; k < C.length; k++) {
+	  for (int f = 0; f < A[i].length; f++) {
+	    data[i][j][k] += A[i][f] * B[j][f] * C[k][f];
+	  }
+	}
+      }
+    }
+    return data;
+  }
+
+  @Test
+  public void testLossWithoutReconstruction() {
+    final Tensor data = TestUtils.generateRandomTensor(I, J, K);
+    pf.setNumStarts(1);
+    pf.build(data);
+
+    // One more iteration to fill the cache
+    pf.nextIteration();
+    final double expected = pf.Xmatricized[0].squaredDistance(pf.reconstruct());
+    assertEquals(expected, pf.calculateLoss(), expected * 1e-8);
+  }
+
+  @Test
+  public void testSketchedSolver() {
+    final int numPolishingIterations = 5;
+    pf.setSolver(Solver.SKETCHED);
+    pf.setSketchSize(6);
+    pf.setNumPolishingIterations(numPolishingIterations);
+    assertNull(pf.build(TestUtils.generateRandomTensor(I, J, K)));
+
+    final List<List<Double>> lossHistory = pf.getLossHistory();
+    assertEquals(numStarts, lossHistory.size());
+    assertEquals(numStarts, pf.getNumSketchedIterations().size());
+    for (int i = 0; i < numStarts; i++) {
+      assertEquals(maxIter, (int) pf.getNumSketchedIterations().get(i));
+      assertEquals(maxIter + numPolishingIterations, lossHistory.get(i).size());
+      lossHistory.get(i).forEach(l -> assertFalse(Double.isNaN(l)));
+    }
+  }
+
+  @Test
+  public void testSketchedSolverImprovement() {
+    final int numPolishingIterations = 5;
+    final int exactLossInterval = 2;
+    final int maxSketchedIter = 100;
+    pf.setSolver(Solver.SKETCHED);
+    pf.setSketchSize(6);
+    pf.setNumPolishingIterations(numPolishingIterations);
+    pf.setExactLossInterval(exactLossInterval);
+    pf.addStoppingCriterion(CriterionUtils.iterations(maxSketchedIter));
+    pf.addStoppingCriterion(CriterionUtils.improvement(0.5));
+    assertNull(pf.build(TestUtils.generateRandomTensor(I, J, K)));
+
+    // The exact losses end the sketched phase early, the polishing restarts
+    for (int i = 0; i < numStarts; i++) {
+      final int numSketched = pf.getNumSketchedIterations().get(i);
+      assertTrue(numSketched < maxSketchedIter);
+      assertEquals(0, numSketched % exactLossInterval);
+      final int numPolished = pf.getLossHistory().get(i).size() - numSketched;
+      assertTrue(numPolished >= 2);
+      assertTrue(numPolished <= numPolishingIterations);
+    }
+  }
+
+  @Test
+  public void testConstraints() {
+    pf.setConstraints(Constraint.NON_NEGATIVE, Constraint.ORTHOGONAL, Constraint.UNIMODAL);
+    assertNull(pf.build(TestUtils.generateRandomTensor(I, J, K)));
+
+    final Map<String, Tensor> loadingMatrices = pf.getLoadingMatrices();
+    assertTrue(loadingMatrices.get("A").getData().minNumber().doubleValue() >= 0);
+
+    final INDArray B = loadingMatrices.get("B").getData();
+    assertTrue(B.transpose().mmul(B).equalsWithEps(Nd4j.eye(numComponents), 1e-6));
+
+    final INDArray C = loadingMatrices.get("C").getData();
+    for (int f = 0; f < numComponents; f++) {
+      int i = 0;
+      while (i + 1 < K && C.getDouble(i + 1, f) >= C.getDouble(i, f) - 1e-10) {
+	i++;
+      }
+      while (i + 1 < K && C.getDouble(i + 1, f) <= C.getDouble(i, f) + 1e-10) {
+	i++;
+      }
+      assertEquals(K - 1, i);
+    }
+  }
+
+  @Test
+  public void testPostprocessKeepsConstraints() {
+    pf.setConstraints(Constraint.NON_NEGATIVE, Constraint.ORTHOGONAL, Constraint.NONE);
+    final INDArray A = Nd4j.create(new double[][]{{1, 2}, {3, 1}, {0, 2}, {1, 1}, {2, 0}});
+    // The largest absolute entry of each orthonormal column is negative
+    final INDArray B = Nd4j.create(new double[][]{{-0.8, 0}, {0.6, 0}, {0, -1}, {0, 0}});
+    final INDArray C = Nd4j.create(new double[][]{{1, -2}, {0.5, 1}, {-1, 3}});
+    pf.factors = new INDArray[]{A, B, C};
+    final INDArray model = pf.reconstruct();
+
+    pf.postprocess();
+
+    // Model and constraints are kept, while B has been flipped
+    assertTrue(model.equalsWithEps(pf.reconstruct(), 1e-8));
+    final INDArray Apost = pf.factors[0];
+    final INDArray Bpost = pf.factors[1];
+    assertTrue(Apost.minNumber().doubleValue() >= 0);
+    assertTrue(Bpost.transpose().mmul(Bpost).equalsWithEps(Nd4j.eye(numComponents), 1e-8));
+    for (int f = 0; f < numComponents; f++) {
+      final INDArray column = Bpost.getColumn(f);
+      final int argmax = Transforms.abs(column).argMax(0).getInt(0);
+      assertTrue(column.getDouble(argmax) > 0);
+    }
+  }
+
+  @Test
+  public void testInvalidOrthogonalConstraint() {
+    pf.setNumComponents(K + 1);
+    pf.setConstraints(Constraint.NONE, Constraint.NONE, Constraint.ORTHOGONAL);
+    assertNotNull(pf.build(TestUtils.generateRandomTensor(I, J, K)));
+  }
+
+  @Test
+  public void testRandomizedSVDInit() {
+    final Tensor X = TestUtils.generateRandomTensor(I, J, K);
+    pf.setNumStarts(1);
+    pf.setInitMethod(Initialization.SVD);
+    assertNull(pf.build(X));
+    final double svdLoss = pf.getLossHistory().get(0).get(0);
+
+    // The random directions span the full range of these small unfoldings
+    pf.setInitMethod(Initialization.RANDOMIZED_SVD);
+    assertNull(pf.build(X));
+    assertEquals(svdLoss, pf.getLossHistory().get(0).get(0), 1e-8 * svdLoss);
+  }
+
+  @Test
+  public void testWarmStart() {
+    final Tensor X = TestUtils.generateRandomTensor(I, J, K);
+    pf.setNumStarts(1);
+    assertNull(pf.build(X));
+    final List<Double> losses = pf.getLossHistory().get(0);
+
+    // Continuing from the previous model must not increase the loss
+    final PARAFAC warm = new PARAFAC();
+    warm.setNumComponents(numComponents);
+    warm.setInitMethod(Initialization.PROVIDED);
+    warm.setInitialLoadingMatrices(pf.getLoadingMatrices());
+    warm.addStoppingCriterion(CriterionUtils.iterations(maxIter));
+    assertNull(warm.build(X));
+    final double lastLoss = losses.get(losses.size() - 1);
+    assertTrue(warm.getLossHistory().get(0).get(0) <= lastLoss * (1 + 1e-10));
+
+    // New samples are appended to the first mode
+    final PARAFAC old = new PARAFAC();
+    old.setNumComponents(numComponents);
+    old.addStoppingCriterion(CriterionUtils.iterations(maxIter));
+    assertNull(old.build(TestUtils.generateRandomTensor(I - 2, J, K)));
+    warm.setInitialLoadingMatrices(old.getLoadingMatrices());
+    assertNull(warm.build(X));
+    assertEquals(I, warm.getLoadingMatrices().get("A").size(0));
+  }
+
+  @Test
+  public void testWarmStartInvalid() {
+    pf.setInitMethod(Initialization.PROVIDED);
+    assertNotNull(pf.build(TestUtils.generateRandomTensor(I, J, K)));
+
+    final PARAFAC old = new PARAFAC();
+    old.setNumComponents(numComponents);
+    old.addStoppingCriterion(CriterionUtils.iterations(maxIter));
+    assertNull(old.build(TestUtils.generateRandomTensor(I, J + 1, K)));
+    pf.setInitialLoadingMatrices(old.getLoadingMatrices());
+    assertNotNull(pf.build(TestUtils.generateRandomTensor(I, J, K)));
+  }
+
+  @Test
+  public void testMissingValuesRejected() {
+    final Tensor data = TestUtils.generateRandomTensor(I, J, K);
+    data.getData().putScalar(new int[]{1, 2, 0}, Double.NaN);
+    assertNotNull(pf.build(data));
+  }
+
+  @Test
+  public void testMissingValuesImputed() {
+    final Tensor data = TestUtils.generateRandomTensor(I, J, K);
+    data.getData().putScalar(new int[]{1, 2, 0}, Double.NaN);
+    data.getData().putScalar(new int[]{4, 0, 2}, Double.NaN);
+    pf.setMissingValueHandling(MissingValueHandling.EM_IMPUTATION);
+    assertNull(pf.build(data));
+
+    // Subscripts of the missing cells per mode
+    assertArrayEquals(new int[]{1, 4}, pf.missingSubscripts[0]);
+    assertArrayEquals(new int[]{2, 0}, pf.missingSubscripts[1]);
+    assertArrayEquals(new int[]{0, 2}, pf.missingSubscripts[2]);
+
+    pf.getLossHistory().forEach(h -> h.forEach(l -> assertFalse(Double.isNaN(l))));
+    for (Tensor loadings : pf.getLoadingMatrices().values()) {
+      assertFalse(Double.isNaN(loadings.getData().sumNumber().doubleValue()));
+    }
+  }
+
+  @Test
+  public void testMissingValuesRecovered() {
+    // Noise-free tensor of known rank with about 5% missing cells
+    final Random rng = new Random(1);
+    final double[][][] factors = new double[3][][];
+    final int[] shape = {8, 7, 6};
+    for (int mode = 0; mode < 3; mode++) {
+      factors[mode] = new double[shape[mode]][numComponents];
+      for (double[] row : factors[mode]) {
+	for (int f = 0; f < numComponents; f++) {
+	  row[f] = rng.nextGaussian();
+	}
+      }
+    }
+    final double[][][] truth = lowRankTensor(factors[0], factors[1], factors[2]);
+    final Tensor data = Tensor.create(truth);
+    double squaredNorm = 0;
+    int numMissing = 0;
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+	for (int k = 0; k < shape[2]; k++) {
+	  if (rng.nextDouble() < 0.05) {
+	    data.getData().putScalar(new int[]{i, j, k}, Double.NaN);
+	    numMissing++;
+	  }
+	  else {
+	    squaredNorm += truth[i][j][k] * truth[i][j][k];
+	  }
+	}
+      }
+    }
+    assertTrue(numMissing > 0);
+
+    pf.setNumStarts(1);
+    pf.setMissingValueHandling(MissingValueHandling.EM_IMPUTATION);
+    pf.addStoppingCriterion(CriterionUtils.iterations(200));
+    assertNull(pf.build(data));
+
+    // The observed cells are fit as well as without missing values
+    final List<Double> lossHistory = pf.getLossHistory().get(0);
+    assertEquals(0.0, lossHistory.get(lossHistory.size() - 1), squaredNorm * 1e-6);
+
+    // The imputations and the model match the masked cells
+    final Map<String, Tensor> loadings = pf.getLoadingMatrices();
+    final INDArray A = loadings.get("A").getData();
+    final INDArray B = loadings.get("B").getData();
+    final INDArray C = loadings.get("C").getData();
+    for (int c = 0; c < numMissing; c++) {
+      final int i = pf.missingSubscripts[0][c];
+      final int j = pf.missingSubscripts[1][c];
+      final int k = pf.missingSubscripts[2][c];
+      double model = 0;
+      for (int f = 0; f < numComponents; f++) {
+	model += A.getDouble(i, f) * B.getDouble(j, f) * C.getDouble(k, f);
+      }
+      assertEquals(truth[i][j][k], model, 1e-3);
+      assertEquals(truth[i][j][k], pf.Xmatricized[0].data().getDouble(pf.missingIndices[0][c]), 1e-3);
+    }
+  }
+
+  @Test
+  public void testLineSearchWithMissingValues() {
+    final Tensor data = TestUtils.generateRandomTensor(I, J, K);
+    data.getData().putScalar(new int[]{1, 2, 0}, Double.NaN);
+    data.getData().putScalar(new int[]{4, 0, 2}, Double.NaN);
+    pf.setMissingValueHandling(MissingValueHandling.EM_IMPUTATION);
+    pf.setAcceleration(Acceleration.LINE_SEARCH);
+    assertNull(pf.build(data));
+
+    for (List<Double> h : pf.getLossHistory()) {
+      for (int i = 1; i < h.size(); i++) {
+	assertTrue(h.get(i) <= h.get(i - 1) + 1e-8);
+      }
+    }
+
+    // After an iteration the imputed cells carry no residual
+    pf.nextIteration();
+    final double expected = pf.calculateLoss();
+    assertEquals(expected, pf.calculateObservedLoss(), expected * 1e-8);
+  }
+
+  @Test
+  public void testFourWay() {
+    final Tensor data = TestUtils.generateRangeTensor(new int[]{I, J, K, 2});
+    assertNull(pf.build(data));
+
+    final Map<String, Tensor> loadingMatrices = pf.getLoadingMatrices();
+    assertEquals(4, loadingMatrices.size());
+    assertEquals(2, loadingMatrices.get("D").size(0));
+    assertEquals(numComponents, loadingMatrices.get("D").size(1));
+
+    final Tensor transformed = pf.filter(data);
+    assertEquals(I, transformed.size(0));
+    assertEquals(numComponents, transformed.size(1));
+  }
+
   @Test(expected = ModelNotBuiltException.class)
   public void testFilterUnbuiltModel() {
     pf.filter(Tensor.create(1));
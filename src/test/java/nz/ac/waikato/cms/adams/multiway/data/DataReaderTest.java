@@ -1,6 +1,7 @@
 package nz.ac.waikato.cms.adams.multiway.data;
 
 import nz.ac.waikato.cms.adams.multiway.TestUtils;
+import nz.ac.waikato.cms.adams.multiway.data.tensor.SparseTensor;
 import nz.ac.waikato.cms.adams.multiway.data.tensor.Tensor;
 import org.junit.Test;
 
@@ -69,6 +70,16 @@ public class DataReaderTest {
     assertTrue(Arrays.deepEquals(dataExpected, data));
   }
 
+  @Test
+  public void read3WaySparseCoordinates() throws IOException {
+    String path = "src/test/resources/datareader/threeway-test-data-with-header.csv";
+    final SparseTensor sparse = DataReader.read3WaySparseCoordinates(path, ",", 3, true);
+    final double[][][] data = DataReader.read3WaySparse(path, ",", 3, true);
+
+    assertEquals(27, sparse.numNonZeros());
+    assertTrue(Arrays.deepEquals(data, sparse.toTensor().toArray3d()));
+  }
+
   @Test
   public void read3WaySparseMissingValues() throws IOException {
     String path = "src/test/resources/datareader/threeway-test-data-missing-values.csv";
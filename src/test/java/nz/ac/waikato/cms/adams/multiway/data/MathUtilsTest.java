@@ -1,14 +1,19 @@
 package nz.ac.waikato.cms.adams.multiway.data;
 
 import nz.ac.waikato.cms.adams.multiway.TestUtils;
+import nz.ac.waikato.cms.adams.multiway.data.tensor.SparseTensor;
 import nz.ac.waikato.cms.adams.multiway.data.tensor.Tensor;
 import org.junit.Test;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 
 import static nz.ac.waikato.cms.adams.multiway.data.MathUtils.t;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -106,6 +111,28 @@ public class MathUtilsTest {
     assertEquals(prod, res);
   }
 
+  /**
+   * Test that the MTTKRP equals the product of the matricized tensor with the
+   * explicit Khatri-Rao product for each mode.
+   */
+  @Test
+  public void testMttkrp() {
+    final INDArray X = TestUtils.generateRandomTensor(5, 4, 3).getData();
+    final INDArray A = Nd4j.rand(5, 2);
+    final INDArray B = Nd4j.rand(4, 2);
+    final INDArray C = Nd4j.rand(3, 2);
+    final INDArray[][] krArgs = {{C, B}, {C, A}, {B, A}};
+
+    for (int mode = 0; mode < 3; mode++) {
+      final INDArray Xunfolded = MathUtils.matricize(X, mode);
+      final INDArray U = krArgs[mode][0];
+      final INDArray V = krArgs[mode][1];
+      final INDArray expected = Xunfolded.mmul(MathUtils.khatriRaoProductColumnWise(U, V));
+      final INDArray actual = MathUtils.mttkrp(Xunfolded, U, V);
+      assertTrue(expected.equalsWithEps(actual, 1e-6));
+    }
+  }
+
   @Test
   public void testInvertMatricize() {
     final INDArray X = Nd4j.arange(4 * 3 * 2).reshape(4, 3, 2);
@@ -116,6 +143,76 @@ public class MathUtilsTest {
     assertEquals(X, folded);
   }
 
+  @Test
+  public void testInvertMatricizeFourWay() {
+    final INDArray X = Nd4j.arange(5 * 4 * 3 * 2).reshape(5, 4, 3, 2);
+
+    for (int mode = 0; mode < 4; mode++) {
+      final INDArray matricized = MathUtils.matricize(X, mode);
+      final INDArray folded = MathUtils.invertMatricize(matricized, mode, X.shape());
+      assertEquals(X, folded);
+    }
+  }
+
+  /**
+   * Test the MTTKRP of a four-way tensor against the explicit Khatri-Rao
+   * product of the three other modes.
+   */
+  @Test
+  public void testMttkrpFourWay() {
+    final INDArray X = Nd4j.rand(new int[]{5, 4, 3, 2});
+    final INDArray B = Nd4j.rand(4, 2);
+    final INDArray C = Nd4j.rand(3, 2);
+    final INDArray D = Nd4j.rand(2, 2);
+
+    final INDArray Xunfolded = MathUtils.matricize(X, 0);
+    final INDArray kr = MathUtils.khatriRaoProductColumnWise(MathUtils.khatriRaoProductColumnWise(D, C), B);
+    final INDArray expected = Xunfolded.mmul(kr);
+    final INDArray actual = MathUtils.mttkrp(Xunfolded, D, C, B);
+    assertTrue(expected.equalsWithEps(actual, 1e-6));
+  }
+
+  @Test
+  public void testBetaDivergence() {
+    final INDArray x = Nd4j.create(new double[][]{{1, 2}, {0, 4}});
+    final INDArray y = Nd4j.create(new double[][]{{2, 2}, {1, 1}});
+
+    assertEquals(0.5 * x.squaredDistance(y), MathUtils.betaDivergence(x, y, 2), 1e-6);
+
+    // sum x log(x/y) - x + y, with 0 log 0 = 0
+    final double kl = Math.log(0.5) + 1 + 1 + 4 * Math.log(4) - 3;
+    assertEquals(kl, MathUtils.betaDivergence(x, y, 1), 1e-6);
+
+    // The general formula converges to the Kullback-Leibler divergence
+    assertEquals(kl, MathUtils.betaDivergence(x, y, 1 + 1e-6), 1e-4);
+    assertEquals(0, MathUtils.betaDivergence(y, y, 0), 1e-6);
+  }
+
+  /**
+   * Test the sparse MTTKRP against the dense MTTKRP of the same tensor.
+   */
+  @Test
+  public void testMttkrpSparse() {
+    final int[][] indices = {{0, 1, 3, 3, 4}, {2, 0, 1, 1, 3}, {1, 0, 2, 0, 1}};
+    final double[] values = {1.5, 2.0, 0.5, 3.0, 1.0};
+    final SparseTensor Xsparse = SparseTensor.create(indices, values, new long[]{5, 4, 3});
+    final INDArray X = Xsparse.toTensor().getData();
+    final INDArray[] factors = {Nd4j.rand(5, 2), Nd4j.rand(4, 2), Nd4j.rand(3, 2)};
+
+    for (int mode = 0; mode < 3; mode++) {
+      final INDArray[] others = new INDArray[2];
+      int idx = 0;
+      for (int n = 2; n >= 0; n--) {
+	if (n != mode) {
+	  others[idx++] = factors[n];
+	}
+      }
+      final INDArray expected = MathUtils.mttkrp(MathUtils.matricize(X, mode), others);
+      final INDArray actual = MathUtils.mttkrp(Xsparse, mode, factors);
+      assertTrue(expected.equalsWithEps(actual, 1e-6));
+    }
+  }
+
   @Test
   public void testArrayConversion() {
     final int seed = 0;
@@ -186,6 +283,126 @@ public class MathUtilsTest {
     }
   }
 
+  /**
+   * Test the randomized SVD on a low rank matrix, where the range finder
+   * captures the range exactly.
+   */
+  @Test
+  public void testRandomizedSvd() {
+    final INDArray x = TestUtils.generateRandomMatrix(30, 3).getData()
+      .mmul(TestUtils.generateRandomMatrix(3, 20).getData());
+    final Map<String, INDArray> exact = MathUtils.svd(x);
+    final Map<String, INDArray> randomized = MathUtils.randomizedSvd(x, 2, 5, 1, 0);
+
+    assertEquals(30, randomized.get("U").size(0));
+    assertEquals(2, randomized.get("U").size(1));
+    assertEquals(20, randomized.get("V").size(0));
+    for (int i = 0; i < 2; i++) {
+      final double sval = exact.get("S").getDouble(i, i);
+      assertEquals(sval, randomized.get("SVAL").getDouble(i, 0), 1e-8 * sval);
+
+      // Singular vectors are equal up to their sign
+      final double dot = t(randomized.get("U").getColumn(i))
+	.mmul(exact.get("U").getColumn(i)).getDouble(0);
+      assertEquals(1, Math.abs(dot), 1e-8);
+    }
+  }
+
+  /**
+   * Test the power method against the first singular vectors of the full SVD,
+   * with and without a warm start.
+   */
+  @Test
+  public void testDominantSingularVectors() {
+    final INDArray x = TestUtils.generateRandomMatrix(15, 8).getData();
+    final Map<String, INDArray> exact = MathUtils.svd(x);
+    final INDArray[] cold = MathUtils.dominantSingularVectors(x, null, 10000, 1e-14);
+    final INDArray[] warm = MathUtils.dominantSingularVectors(x, cold[1].add(0.1), 10000, 1e-14);
+
+    for (INDArray[] uv : new INDArray[][]{cold, warm}) {
+      assertEquals(15, uv[0].size(0));
+      assertEquals(8, uv[1].size(0));
+      final double dotU = t(uv[0]).mmul(exact.get("U").getColumn(0, true)).getDouble(0);
+      final double dotV = t(uv[1]).mmul(exact.get("V").getColumn(0, true)).getDouble(0);
+      assertEquals(1, Math.abs(dotU), 1e-6);
+      assertEquals(1, Math.abs(dotV), 1e-6);
+
+      // Singular value is positive with the returned signs
+      final double sval = t(uv[0]).mmul(x).mmul(uv[1]).getDouble(0);
+      assertEquals(exact.get("S").getDouble(0, 0), sval, 1e-8);
+    }
+  }
+
+  /**
+   * Test FNNLS on a problem whose unconstrained solution has a negative entry
+   * by checking the KKT conditions.
+   */
+  @Test
+  public void testFnnls() {
+    final double[][] A = {{1, 0}, {0, 1}, {1, 1}};
+    final double[] b = {2, -1, 1};
+    final double[][] AtA = new double[2][2];
+    final double[] Atb = new double[2];
+    for (int i = 0; i < 2; i++) {
+      for (int k = 0; k < A.length; k++) {
+	Atb[i] += A[k][i] * b[k];
+	for (int j = 0; j < 2; j++) {
+	  AtA[i][j] += A[k][i] * A[k][j];
+	}
+      }
+    }
+
+    final double[] x = MathUtils.fnnls(AtA, Atb);
+    assertEquals(1.5, x[0], 1e-10);
+    assertEquals(0, x[1], 1e-10);
+
+    // Gradient must not point into the feasible region
+    final double w1 = Atb[1] - AtA[1][0] * x[0] - AtA[1][1] * x[1];
+    assertTrue(w1 <= 1e-10);
+  }
+
+  /**
+   * Test FNNLS with factorizations shared between several right hand sides.
+   */
+  @Test
+  public void testFnnlsSharedFactorizations() {
+    final double[][] AtA = {{2, 1}, {1, 2}};
+    final double[][] Atbs = {{3, 3}, {3, -3}, {6, 6}};
+    final double[][] expected = {{1, 1}, {1.5, 0}, {2, 2}};
+    final Map<BitSet, double[][]> factorizations = new HashMap<>();
+    for (int i = 0; i < Atbs.length; i++) {
+      final double[] x = MathUtils.fnnls(AtA, Atbs[i], factorizations);
+      assertArrayEquals(expected[i], x, 1e-10);
+      assertArrayEquals(MathUtils.fnnls(AtA, Atbs[i]), x, 1e-10);
+    }
+
+    // Singular Gram matrix of two equal columns
+    final double[] x = MathUtils.fnnls(new double[][]{{1, 1}, {1, 1}}, new double[]{2, 2});
+    assertEquals(2, x[0] + x[1], 1e-10);
+  }
+
+  @Test
+  public void testUnimodalRegression() {
+    final double[] y = {1, 3, 2, 5, 4, 1, 2, 0};
+    final double[] fit = MathUtils.unimodalRegression(y);
+
+    // Check unimodality
+    int i = 0;
+    while (i + 1 < fit.length && fit[i + 1] >= fit[i]) {
+      i++;
+    }
+    while (i + 1 < fit.length && fit[i + 1] <= fit[i]) {
+      i++;
+    }
+    assertEquals(fit.length - 1, i);
+
+    // Expected fit: increasing 1, 2.5, 2.5, 5 and decreasing 4, 1.5, 1.5, 0
+    final double[] expected = {1, 2.5, 2.5, 5, 4, 1.5, 1.5, 0};
+    for (int j = 0; j < fit.length; j++) {
+      assertEquals(expected[j], fit[j], 1e-10);
+    }
+  }
+
   @Test
   public void testExtendArray(){
     long[] arr = {1,2,3};
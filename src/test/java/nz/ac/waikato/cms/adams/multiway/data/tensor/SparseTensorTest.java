@@ -0,0 +1,92 @@
+package nz.ac.waikato.cms.adams.multiway.data.tensor;
+
+import nz.ac.waikato.cms.adams.multiway.data.MathUtils;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testcases for {@link SparseTensor}.
+ *
+ * @author agent
+ */
+public class SparseTensorTest {
+
+  /** Entries with the coordinate (1, 2, 0) twice */
+  private SparseTensor createWithDuplicates() {
+    final int[][] indices = {{1, 0, 1, 2}, {2, 1, 2, 0}, {0, 1, 0, 1}};
+    final double[] values = {1.5, 2.0, 3.0, -1.0};
+    return SparseTensor.create(indices, values, new long[]{3, 3, 2});
+  }
+
+  @Test
+  public void mergeDuplicates() {
+    final SparseTensor sparse = createWithDuplicates();
+    assertEquals(3, sparse.numNonZeros());
+
+    // Sorted by coordinate, duplicates summed up
+    assertArrayEquals(new int[]{0, 1, 2}, sparse.getIndices(0));
+    assertArrayEquals(new int[]{1, 2, 0}, sparse.getIndices(1));
+    assertArrayEquals(new int[]{1, 0, 1}, sparse.getIndices(2));
+    assertArrayEquals(new double[]{2.0, 4.5, -1.0}, sparse.getValues(), 1e-12);
+  }
+
+  @Test
+  public void squaredNormWithDuplicates() {
+    final SparseTensor sparse = createWithDuplicates();
+    final INDArray dense = sparse.toTensor().getData();
+    assertEquals(4.5, dense.getDouble(1, 2, 0), 1e-12);
+    final double norm = dense.norm2Number().doubleValue();
+    assertEquals(norm * norm, sparse.squaredNorm(), 1e-10);
+  }
+
+  @Test
+  public void mttkrpWithDuplicates() {
+    final SparseTensor sparse = createWithDuplicates();
+    final INDArray dense = sparse.toTensor().getData();
+    final INDArray[] factors = {
+      Nd4j.rand(3, 2),
+      Nd4j.rand(3, 2),
+      Nd4j.rand(2, 2)
+    };
+    for (int mode = 0; mode < 3; mode++) {
+      final INDArray[] others = new INDArray[2];
+      int idx = 0;
+      for (int other = 2; other >= 0; other--) {
+	if (other != mode) {
+	  others[idx++] = factors[other];
+	}
+      }
+      final INDArray expected = MathUtils.mttkrp(MathUtils.matricize(dense, mode), others);
+      assertTrue(expected.equalsWithEps(MathUtils.mttkrp(sparse, mode, factors), 1e-6));
+    }
+  }
+
+  @Test
+  public void serialization() throws IOException, ClassNotFoundException {
+    final SparseTensor sparse = createWithDuplicates();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(sparse);
+    }
+    final SparseTensor copy;
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      copy = (SparseTensor) in.readObject();
+    }
+    assertArrayEquals(sparse.shape(), copy.shape());
+    assertArrayEquals(sparse.getValues(), copy.getValues(), 0.0);
+    for (int mode = 0; mode < 3; mode++) {
+      assertArrayEquals(sparse.getIndices(mode), copy.getIndices(mode));
+    }
+  }
+}